@@ -0,0 +1,85 @@
+package org.uncorpora.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.kohsuke.args4j.CmdLineException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full Processor run, file to file, as the nightly job runs it, for each engine and a few flag sets.
+ * The input is a synthetic corpus written to a temporary file; tuCount = 20000 gives about 30 MB.
+ *
+ * Run with -prof gc for the allocation rate.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessorBenchmark
+{
+    @Param({"20000"})
+    public int tuCount;
+
+    @Param({"", "-cursor", "-threads 4", "-split -threads 4"})
+    public String engine;
+
+    @Param({"", "-langs EN,FR", "-novote -plaintext", "-sessions 57"})
+    public String flags;
+
+    private File inFile;
+    private File outFile;
+    private Processor processor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, CmdLineException
+    {
+        inFile = File.createTempFile("uncorpora-bench", ".tmx");
+        outFile = File.createTempFile("uncorpora-bench-out", ".tmx");
+        TMXGenerator.write(inFile, tuCount, 1);
+
+        List<String> args = new ArrayList<String>();
+        for (String options : new String[] {engine, flags})
+        {
+            if (options.length() > 0)
+            {
+                args.addAll(Arrays.asList(options.split(" ")));
+            }
+        }
+        args.add("-output");
+        args.add(outFile.getPath());
+        args.add(inFile.getPath());
+        processor = Processor.fromArgs(args.toArray(new String[args.size()]));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        inFile.delete();
+        outFile.delete();
+    }
+
+    @Benchmark
+    public long run() throws Exception
+    {
+        processor.run();
+        return outFile.length();
+    }
+}
@@ -0,0 +1,149 @@
+package org.uncorpora.utils;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TU level paths, on an in-memory synthetic corpus:
+ * 1) collectUntilTU: parsing and cutting the document into TUs
+ * 2) rewrite: TURewriter over already parsed TUs, for every combination of the flags.
+ *    -langs alone measures TUV removal (the old removeElements), -plaintext the SUB removal
+ *    and HI flattening (the old flattenElements)
+ *
+ * Events per second show up as the "events" counter; run with -prof gc for the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RewriteBenchmark
+{
+    @Param({"2000"})
+    public int tuCount;
+
+    @Param({"EN,FR,ES,AR,ZH,RU", "EN,FR", "ZH"})
+    public String langs;
+
+    @Param({"false", "true"})
+    public boolean noVote;
+
+    @Param({"false", "true"})
+    public boolean plaintext;
+
+    @Param({"", "57"})
+    public String sessions;
+
+    private String document;
+    private XMLInputFactory inputFactory;
+    private List<XMLEvent[]> tus;
+    private TURewriter rewriter;
+    private TUWindow window;
+
+    /**
+     * Events gone through in the iteration, reported per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Events
+    {
+        public long events;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            events = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, XMLStreamException
+    {
+        StringWriter out = new StringWriter();
+        new TMXGenerator(1).write(out, tuCount);
+        document = out.toString();
+        inputFactory = XMLInputFactory.newInstance();
+
+        tus = new ArrayList<XMLEvent[]>(tuCount);
+        XMLEventReader eventReader = inputFactory.createXMLEventReader(new StringReader(document));
+        TUWindow buffer = new TUWindow();
+        Processor.collectUntilTU(eventReader, buffer, false);
+        buffer.clear();
+        while (Processor.collectUntilTU(eventReader, buffer, true) && Processor.collectUntilTU(eventReader, buffer, true))
+        {
+            XMLEvent[] tu = new XMLEvent[buffer.size()];
+            for (int i = 0; i < tu.length; i++)
+            {
+                tu[i] = buffer.get(i);
+            }
+            tus.add(tu);
+            buffer.clear();
+            Processor.collectUntilTU(eventReader, buffer, false);
+            buffer.clear();
+        }
+
+        Set<String> keptSessions = sessions.length() == 0 ? null : new TreeSet<String>(Arrays.asList(sessions.split(",")));
+        rewriter = new TURewriter(Processor.VALID_LANGS, new TreeSet<String>(Arrays.asList(langs.split(","))), noVote, plaintext, keptSessions, false, null, Long.MAX_VALUE, new RunMetrics());
+        window = new TUWindow();
+    }
+
+    @Benchmark
+    public int collectUntilTU(Events counter) throws XMLStreamException
+    {
+        XMLEventReader eventReader = inputFactory.createXMLEventReader(new StringReader(document));
+        TUWindow buffer = window;
+        int boundaries = 0;
+        while (Processor.collectUntilTU(eventReader, buffer, true))
+        {
+            counter.events += buffer.size();
+            buffer.clear();
+            boundaries++;
+        }
+        counter.events += buffer.size();
+        buffer.clear();
+        return boundaries;
+    }
+
+    @Benchmark
+    public int rewrite(Events counter)
+    {
+        int kept = 0;
+        for (XMLEvent[] tu : tus)
+        {
+            window.clear();
+            for (XMLEvent event : tu)
+            {
+                window.add(event);
+            }
+            rewriter.rewrite(window, 0, tu.length);
+            kept += window.nextLive(0) < tu.length ? 1 : 0;
+            counter.events += tu.length;
+        }
+        return kept;
+    }
+}
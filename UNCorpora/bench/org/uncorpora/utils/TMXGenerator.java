@@ -0,0 +1,123 @@
+package org.uncorpora.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Synthetic TMX in the shape of the UN corpus: one TU per paragraph, a session prop,
+ * a vote prop on about one TU in five, and a TUV for each of the six languages
+ * (each language missing from about one TU in ten). Segments hold 3 to 30 words,
+ * with the occasional symbol HI and footnote SUB, and a comment every 50 TUs.
+ * The same seed always gives the same file.
+ */
+public final class TMXGenerator
+{
+    private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+
+    private static final String[] LANGS = {"EN", "FR", "ES", "AR", "ZH", "RU"};
+    private static final String[][] WORDS = {
+        {"the", "assembly", "decides", "resolution", "member", "states"},
+        {"l'assemblée", "décide", "résolution", "états", "membres"},
+        {"la", "asamblea", "decide", "resolución", "estados", "miembros"},
+        {"الجمعية", "تقرر", "القرار", "الدول", "الأعضاء"},
+        {"大会", "决定", "决议", "会员国", "秘书长"},
+        {"Ассамблея", "постановляет", "резолюция", "государства", "члены"}
+    };
+
+    private final Random random;
+
+    public TMXGenerator(long seed)
+    {
+        random = new Random(seed);
+    }
+
+    /**
+     * Write a whole document with the given number of TUs.
+     */
+    public void write(Writer out, int tuCount) throws IOException
+    {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<tmx version=\"1.4\">\n");
+        out.write("<header creationtool=\"TMXGenerator\" segtype=\"paragraph\" o-tmf=\"x\" adminlang=\"EN\" srclang=\"EN\" datatype=\"plaintext\">\n");
+        out.write("<note>synthetic &amp; test</note>\n</header>\n<body>\n");
+        for (int i = 0; i < tuCount; i++)
+        {
+            writeTU(out, i);
+            if (i % 50 == 7)
+            {
+                out.write("<!-- comment between tus -->\n");
+            }
+        }
+        out.write("</body>\n</tmx>\n");
+    }
+
+    private void writeTU(Writer out, int id) throws IOException
+    {
+        out.write("<tu tuid=\"" + id + "\" datatype=\"plaintext\">\n");
+        out.write("  <prop type=\"session\">" + (55 + random.nextInt(8)) + "</prop>\n");
+        if (random.nextDouble() < 0.2)
+        {
+            out.write("  <prop type=\"vote\">yes</prop>\n");
+        }
+        for (int l = 0; l < LANGS.length; l++)
+        {
+            if (random.nextDouble() >= 0.9)
+            {
+                continue;
+            }
+            out.write("  <tuv xml:lang=\"" + LANGS[l] + "\">\n    <seg>");
+            int words = 3 + random.nextInt(28);
+            for (int k = 0; k < words; k++)
+            {
+                double r = random.nextDouble();
+                if (r < 0.05)
+                {
+                    out.write("<hi type=\"symbol\">A/" + (55 + random.nextInt(8)) + "/L." + k + "</hi> ");
+                }
+                else if (r < 0.08)
+                {
+                    out.write("<sub type=\"fnote\">footnote &lt;" + k + "&gt;</sub>\n  ");
+                }
+                else
+                {
+                    out.write(WORDS[l][random.nextInt(WORDS[l].length)]);
+                    out.write(r > 0.99 ? " &amp; " : " ");
+                }
+            }
+            out.write("</seg>\n  </tuv>\n");
+        }
+        out.write("</tu>\n");
+    }
+
+    /**
+     * Write a file with the given number of TUs.
+     * Usage: TMXGenerator outputFile tuCount [seed]
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Missing output file, TU count");
+            System.exit(1);
+        }
+        write(new File(args[0]), Integer.parseInt(args[1]), args.length > 2 ? Long.parseLong(args[2]) : 1);
+    }
+
+    static void write(File file, int tuCount, long seed) throws IOException
+    {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), CHARSET_UTF8), 1 << 16);
+        try
+        {
+            new TMXGenerator(seed).write(out, tuCount);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.uncorpora.test;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Date;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import org.uncorpora.utils.ChannelWriter;
+
+/**
+ * Compare output stacks by copying a full sized file through StAX events into each of them:
+ * 1) BufferedWriter over OutputStreamWriter with the old 12 char buffer (10 ^ 6)
+ * 2) The same with a 1 MB buffer
+ * 3) ChannelWriter encoding into a 1 MB byte buffer written to a FileChannel
+ */
+public class OutputBenchmark
+{
+
+    private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    public static void main(String[] args) throws XMLStreamException, IOException
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Missing input, output files");
+            System.exit(1);
+        }
+
+        final String fileIn = args[0];
+        final String fileOut = args[1];
+
+        System.out.println("START! " + (new Date()));
+        for (int round = 0; round < 2; round++) //first round warms up
+        {
+            long time = copy(fileIn, new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileOut), CHARSET_UTF8), 10 ^ 6));
+            System.out.println("BufferedWriter, 12 chars: " + time + " ms");
+
+            time = copy(fileIn, new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileOut), CHARSET_UTF8), BUFFER_SIZE));
+            System.out.println("BufferedWriter, 1 MB    : " + time + " ms");
+
+            time = copy(fileIn, new ChannelWriter(new FileOutputStream(fileOut).getChannel(), CHARSET_UTF8, BUFFER_SIZE));
+            System.out.println("ChannelWriter, 1 MB     : " + time + " ms");
+        }
+        System.out.println("DONE! " + (new Date()));
+    }
+
+    /**
+     * @return milliseconds taken to copy the whole file into the writer and close it
+     */
+    private static long copy(String fileIn, Writer out) throws XMLStreamException, IOException
+    {
+        long start = System.currentTimeMillis();
+        XMLEventReader eventReader = XMLInputFactory.newInstance().createXMLEventReader(new BufferedReader(new InputStreamReader(new FileInputStream(fileIn), CHARSET_UTF8), BUFFER_SIZE));
+        XMLEventWriter eventWriter = XMLOutputFactory.newInstance().createXMLEventWriter(out);
+        while (eventReader.hasNext())
+        {
+            eventWriter.add(eventReader.nextEvent());
+        }
+        eventReader.close();
+        eventWriter.close();
+        out.close();
+        return System.currentTimeMillis() - start;
+    }
+}
@@ -28,7 +28,7 @@ public class PassThrough
 {
 
     private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
-    private static final int BUFFER_SIZE = 10 ^ 6;
+    private static final int BUFFER_SIZE = 1 << 20;
 
     public static void main(String[] args) throws XMLStreamException, FileNotFoundException
     {
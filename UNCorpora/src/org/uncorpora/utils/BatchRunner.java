@@ -0,0 +1,277 @@
+package org.uncorpora.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import org.kohsuke.args4j.CmdLineException;
+
+/**
+ * Batch mode: one JVM processes many input files, a fixed number of them at a time, each with
+ * the same flags as a single run. Inputs are files, directories searched for TMX files, or
+ * file name patterns with * and ?. Every output goes into the batch directory, under the input's
+ * path relative to the directory it was found in, and gets a line in the manifest there,
+ * manifest.jsonl, once it is done.
+ *
+ * The number of files at a time is the only limit on the work in flight: each file still runs
+ * its own engine, so with -threads or gzip output a file uses several cores of its own.
+ */
+final class BatchRunner
+{
+    static final String MANIFEST = "manifest.jsonl";
+
+    /** Input file names taken from a directory */
+    private static final Pattern TMX_NAME = Pattern.compile(".*\\.tmx(\\.gz|\\.xz|\\.zst|\\.zstd)?");
+
+    private final String[] args;
+    private final File outDir;
+    private final int jobs;
+    private Writer manifest;
+
+    /**
+     * @param args command line, giving the flags of every file
+     * @param outDir directory of the outputs and the manifest
+     * @param jobs number of files processed at a time
+     */
+    BatchRunner(String[] args, File outDir, int jobs)
+    {
+        this.args = args;
+        this.outDir = outDir;
+        this.jobs = jobs;
+    }
+
+    /**
+     * Find the input files.
+     * @param inputs files, directories and file name patterns, as given on the command line
+     * @return output file of each input file, in the order found
+     * @throws CmdLineException if an input matches no file, or two inputs would write the same output
+     */
+    Map<File, File> plan(List<File> inputs) throws CmdLineException
+    {
+        Map<File, File> outputs = new LinkedHashMap<File, File>();
+        Map<File, File> inputOf = new HashMap<File, File>();
+        for (File input : inputs)
+        {
+            List<String> found = new ArrayList<String>();
+            File base;
+            if (input.isDirectory())
+            {
+                base = input;
+                addDirectory(input, "", found);
+            }
+            else if (input.getName().indexOf('*') >= 0 || input.getName().indexOf('?') >= 0)
+            {
+                base = input.getAbsoluteFile().getParentFile();
+                Pattern pattern = glob(input.getName());
+                String[] names = base.list();
+                if (names != null)
+                {
+                    Arrays.sort(names);
+                    for (String name : names)
+                    {
+                        if (pattern.matcher(name).matches() && new File(base, name).isFile())
+                        {
+                            found.add(name);
+                        }
+                    }
+                }
+            }
+            else
+            {
+                base = input.getAbsoluteFile().getParentFile();
+                if (input.isFile())
+                {
+                    found.add(input.getName());
+                }
+            }
+            if (found.isEmpty())
+            {
+                throw new CmdLineException("No input files in " + input);
+            }
+
+            for (String path : found)
+            {
+                File in = new File(base, path);
+                File out = new File(outDir, path);
+                if (out.getAbsoluteFile().equals(in.getAbsoluteFile()))
+                {
+                    throw new CmdLineException(String.format("%s would be overwritten by its own output", in));
+                }
+                File other = inputOf.put(out.getAbsoluteFile(), in);
+                if (other != null && !other.equals(in))
+                {
+                    throw new CmdLineException(String.format("%s and %s would both write %s", other, in, out));
+                }
+                outputs.put(in, out);
+            }
+        }
+        return outputs;
+    }
+
+    private static void addDirectory(File dir, String prefix, List<String> found)
+    {
+        String[] names = dir.list();
+        if (names == null)
+        {
+            return;
+        }
+        Arrays.sort(names);
+        for (String name : names)
+        {
+            File file = new File(dir, name);
+            if (file.isDirectory())
+            {
+                addDirectory(file, prefix + name + File.separator, found);
+            }
+            else if (TMX_NAME.matcher(name).matches())
+            {
+                found.add(prefix + name);
+            }
+        }
+    }
+
+    /**
+     * @return regular expression of a file name pattern with * and ?
+     */
+    private static Pattern glob(String name)
+    {
+        StringBuilder regex = new StringBuilder();
+        for (String part : name.split("(?=[*?])|(?<=[*?])"))
+        {
+            if (part.equals("*"))
+            {
+                regex.append(".*");
+            }
+            else if (part.equals("?"))
+            {
+                regex.append('.');
+            }
+            else if (part.length() > 0)
+            {
+                regex.append(Pattern.quote(part));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Process every input, jobs at a time, and write the manifest.
+     * @param outputs output of each input, from {@link #plan}
+     * @return number of inputs that failed
+     * @throws IOException if the manifest can not be written
+     */
+    int run(Map<File, File> outputs) throws IOException
+    {
+        if (!outDir.isDirectory() && !outDir.mkdirs())
+        {
+            throw new IOException("Can not create " + outDir);
+        }
+        manifest = new OutputStreamWriter(new FileOutputStream(new File(outDir, MANIFEST)), "UTF-8");
+        ExecutorService workers = Executors.newFixedThreadPool(jobs);
+        int failed = 0;
+        try
+        {
+            List<Future<Boolean>> done = new ArrayList<Future<Boolean>>();
+            for (Map.Entry<File, File> entry : outputs.entrySet())
+            {
+                final File in = entry.getKey();
+                final File out = entry.getValue();
+                done.add(workers.submit(new Callable<Boolean>()
+                {
+                    public Boolean call() throws IOException
+                    {
+                        return process(in, out);
+                    }
+                }));
+            }
+            for (Future<Boolean> result : done)
+            {
+                try
+                {
+                    failed += result.get() ? 0 : 1;
+                }
+                catch (InterruptedException ex)
+                {
+                    throw ParallelEngine.interrupted(ex);
+                }
+                catch (ExecutionException ex)
+                {
+                    throw new IOException("Can not write the manifest: " + ex.getCause());
+                }
+            }
+        }
+        finally
+        {
+            workers.shutdownNow();
+            manifest.close();
+        }
+        return failed;
+    }
+
+    /**
+     * Process one input and add it to the manifest.
+     * @return false if it failed
+     */
+    private boolean process(File in, File out) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        Processor processor = null;
+        File written = out;
+        String error = null;
+        try
+        {
+            File parent = out.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+            {
+                throw new IOException("Can not create " + parent);
+            }
+            processor = Processor.forInput(args, in, out);
+            written = processor.output();
+            processor.run();
+        }
+        catch (CmdLineException ex)
+        {
+            error = ex.getMessage();
+        }
+        catch (Exception ex)
+        {
+            error = ex.toString();
+        }
+
+        StringBuilder line = new StringBuilder(256).append('{');
+        RunMetrics.field(line, "", "input", in.getPath()).append(", ");
+        RunMetrics.field(line, "", "output", written.getPath()).append(", ");
+        RunMetrics.field(line, "", "status", error == null ? "done" : "failed");
+        line.append(", \"elapsedMillis\": ").append(System.currentTimeMillis() - start);
+        if (processor != null)
+        {
+            line.append(", \"tusRead\": ").append(processor.metrics().getTusRead());
+            line.append(", \"tusKept\": ").append(processor.metrics().getTusKept());
+        }
+        if (error != null)
+        {
+            RunMetrics.field(line.append(", "), "", "error", error);
+        }
+        line.append("}\n");
+        synchronized (manifest)
+        {
+            manifest.write(line.toString());
+            manifest.flush();
+        }
+        System.err.println((error == null ? "DONE : " : "FAIL : ") + in + (error == null ? "" : ": " + error));
+        return error == null;
+    }
+}
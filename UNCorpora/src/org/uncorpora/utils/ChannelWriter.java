@@ -0,0 +1,148 @@
+package org.uncorpora.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writer that encodes straight into a reusable byte buffer and writes it to a channel.
+ * Replaces the BufferedWriter / OutputStreamWriter / FileOutputStream stack: one char buffer,
+ * one direct byte buffer, and no extra copies on the way to the file.
+ * Not thread safe; hand it over between threads the way any other Writer is handed over.
+ */
+public final class ChannelWriter extends Writer
+{
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars;
+    private final ByteBuffer bytes;
+
+    /**
+     * @param channel destination, closed together with the writer
+     * @param charset output encoding; characters it can not encode are replaced, as OutputStreamWriter does
+     * @param bufferSize size of the byte buffer, and of the char buffer in front of it
+     */
+    public ChannelWriter(WritableByteChannel channel, Charset charset, int bufferSize)
+    {
+        this.channel = channel;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.chars = CharBuffer.allocate(bufferSize);
+        this.bytes = ByteBuffer.allocateDirect(Math.max(bufferSize, (int) Math.ceil(encoder.maxBytesPerChar())));
+    }
+
+    @Override
+    public void write(int c) throws IOException
+    {
+        if (!chars.hasRemaining())
+        {
+            encode(false);
+        }
+        chars.put((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            if (!chars.hasRemaining())
+            {
+                encode(false);
+            }
+            int count = Math.min(len, chars.remaining());
+            chars.put(cbuf, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            if (!chars.hasRemaining())
+            {
+                encode(false);
+            }
+            int count = Math.min(len, chars.remaining());
+            str.getChars(off, off + count, chars.array(), chars.arrayOffset() + chars.position());
+            chars.position(chars.position() + count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        encode(false);
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (!channel.isOpen())
+        {
+            return;
+        }
+        try
+        {
+            encode(true);
+            while (encoder.flush(bytes).isOverflow())
+            {
+                drain();
+            }
+            drain();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Encode the pending chars, writing out the byte buffer whenever it fills up.
+     * A high surrogate at the very end stays pending until its pair arrives.
+     */
+    private void encode(boolean endOfInput) throws IOException
+    {
+        chars.flip();
+        while (true)
+        {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isOverflow())
+            {
+                drain();
+            }
+            else if (result.isError())
+            {
+                result.throwException();
+            }
+            else
+            {
+                break;
+            }
+        }
+        chars.compact();
+    }
+
+    private void drain() throws IOException
+    {
+        bytes.flip();
+        while (bytes.hasRemaining())
+        {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+}
@@ -0,0 +1,195 @@
+package org.uncorpora.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Properties;
+
+/**
+ * Progress of a split run, saved next to the output as &lt;output&gt;.checkpoint so that a failed
+ * run can be resumed instead of started over. A checkpoint is taken after a range of TUs has been
+ * written out, at most once per interval, and records:
+ * 1) the input offset the next range starts at, always a TU start (or the end of the last TU)
+ * 2) the number of TUs written so far
+ * 3) the output length, with everything before that offset written and flushed
+ * 4) length and modification time of the input, to refuse resuming over a different file
+ * 5) the rules the output was written with, to refuse resuming with different flags
+ *
+ * The checkpoint file is replaced atomically and deleted once the run finishes.
+ */
+final class Checkpoint
+{
+    private static final String INPUT_OFFSET = "inputOffset";
+    private static final String TU_COUNT = "tuCount";
+    private static final String OUTPUT_LENGTH = "outputLength";
+    private static final String INPUT_LENGTH = "inputLength";
+    private static final String INPUT_MODIFIED = "inputModified";
+    private static final String RULES = "rules";
+
+    private final File file;
+    private final File inFile;
+    private final File outFile;
+    private final String rules;
+    /** Input offset to resume at, -1 for a fresh run */
+    private final long resumeOffset;
+    private final long intervalMillis;
+
+    private long tuCount;
+    private long lastSaved = System.currentTimeMillis();
+
+    private Checkpoint(File inFile, File outFile, String rules, long intervalMillis, long resumeOffset, long tuCount)
+    {
+        this.intervalMillis = intervalMillis;
+        this.file = new File(outFile.getPath() + ".checkpoint");
+        this.inFile = inFile;
+        this.outFile = outFile;
+        this.rules = rules;
+        this.resumeOffset = resumeOffset;
+        this.tuCount = tuCount;
+    }
+
+    /**
+     * Start checkpointing a run. When resuming, check the saved checkpoint against the input and
+     * cut the output back to the length it had at the checkpoint.
+     * @param inFile input of the run
+     * @param outFile output of the run, to be opened for appending when resuming
+     * @param rules flags the output depends on, as a string
+     * @param resume continue from the saved checkpoint
+     * @param intervalMillis minimum time between two checkpoints, 0 to save one after every range
+     * @throws IOException if there is no usable checkpoint to resume from
+     */
+    static Checkpoint start(File inFile, File outFile, String rules, boolean resume, long intervalMillis) throws IOException
+    {
+        Checkpoint fresh = new Checkpoint(inFile, outFile, rules, intervalMillis, -1, 0);
+        if (!resume)
+        {
+            return fresh;
+        }
+
+        if (!fresh.file.exists())
+        {
+            throw new IOException("No checkpoint to resume from: " + fresh.file);
+        }
+        Properties saved = new Properties();
+        InputStream in = new FileInputStream(fresh.file);
+        try
+        {
+            saved.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        if (inFile.length() != parse(saved, INPUT_LENGTH) || inFile.lastModified() != parse(saved, INPUT_MODIFIED))
+        {
+            throw new IOException("Input has changed since the checkpoint: " + inFile);
+        }
+        if (!rules.equals(saved.getProperty(RULES)))
+        {
+            throw new IOException(String.format("Flags differ from the checkpoint, run again with %s", saved.getProperty(RULES)));
+        }
+        long outputLength = parse(saved, OUTPUT_LENGTH);
+        RandomAccessFile output = new RandomAccessFile(outFile, "rw");
+        try
+        {
+            if (output.length() < outputLength)
+            {
+                throw new IOException(String.format("Output is shorter than at the checkpoint: %d < %d", output.length(), outputLength));
+            }
+            output.setLength(outputLength);
+        }
+        finally
+        {
+            output.close();
+        }
+        return new Checkpoint(inFile, outFile, rules, intervalMillis, parse(saved, INPUT_OFFSET), parse(saved, TU_COUNT));
+    }
+
+    private static long parse(Properties saved, String key) throws IOException
+    {
+        String value = saved.getProperty(key);
+        if (value == null)
+        {
+            throw new IOException("Checkpoint misses " + key);
+        }
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            throw new IOException("Checkpoint has a bad " + key + ": " + value);
+        }
+    }
+
+    boolean isResuming()
+    {
+        return resumeOffset >= 0;
+    }
+
+    /**
+     * @return input offset of the first TU not yet written, -1 for a fresh run
+     */
+    long resumeOffset()
+    {
+        return resumeOffset;
+    }
+
+    /**
+     * Count a range as written, and save a checkpoint if it is time.
+     * Called by the thread writing the output, right after the range was written.
+     * @param out output writer, flushed before a checkpoint is saved
+     * @param inputEnd input offset the range ends at
+     * @param tus number of TUs written for the range
+     * @throws IOException
+     */
+    void written(Writer out, long inputEnd, int tus) throws IOException
+    {
+        tuCount += tus;
+        long now = System.currentTimeMillis();
+        if (now - lastSaved < intervalMillis)
+        {
+            return;
+        }
+        lastSaved = now;
+
+        out.flush();
+        Properties saved = new Properties();
+        saved.setProperty(INPUT_OFFSET, Long.toString(inputEnd));
+        saved.setProperty(TU_COUNT, Long.toString(tuCount));
+        saved.setProperty(OUTPUT_LENGTH, Long.toString(outFile.length()));
+        saved.setProperty(INPUT_LENGTH, Long.toString(inFile.length()));
+        saved.setProperty(INPUT_MODIFIED, Long.toString(inFile.lastModified()));
+        saved.setProperty(RULES, rules);
+
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream tempOut = new FileOutputStream(temp);
+        try
+        {
+            saved.store(tempOut, "UNCorpora checkpoint of " + inFile);
+            tempOut.flush();
+        }
+        finally
+        {
+            tempOut.close();
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+        {
+            throw new IOException("Can not save checkpoint " + file);
+        }
+    }
+
+    /**
+     * The run is complete, no resuming needed any more.
+     */
+    void finish()
+    {
+        file.delete();
+    }
+}
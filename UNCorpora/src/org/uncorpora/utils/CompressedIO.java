@@ -0,0 +1,169 @@
+package org.uncorpora.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens input and output files, compressed or not, by their extension:
+ * .gz through java.util.zip; .xz and .zst through org.tukaani.xz and com.github.luben.zstd,
+ * which are looked up at run time and only needed on the classpath for those files.
+ *
+ * Decompression runs on a thread of its own ahead of the parser. Gzip output is compressed
+ * in blocks on all cores; xz and zstd output is compressed on a thread of its own behind the writer.
+ */
+final class CompressedIO
+{
+    private static final String XZ_INPUT = "org.tukaani.xz.XZInputStream";
+    private static final String XZ_OUTPUT = "org.tukaani.xz.XZOutputStream";
+    private static final String XZ_OPTIONS = "org.tukaani.xz.LZMA2Options";
+    private static final String XZ_FILTER_OPTIONS = "org.tukaani.xz.FilterOptions";
+    private static final String ZSTD_INPUT = "com.github.luben.zstd.ZstdInputStream";
+    private static final String ZSTD_OUTPUT = "com.github.luben.zstd.ZstdOutputStream";
+
+    private CompressedIO()
+    {
+    }
+
+    static boolean isCompressed(File file)
+    {
+        return isGzip(file) || isXz(file) || isZstd(file);
+    }
+
+    private static boolean isGzip(File file)
+    {
+        return file.getName().endsWith(".gz");
+    }
+
+    private static boolean isXz(File file)
+    {
+        return file.getName().endsWith(".xz");
+    }
+
+    private static boolean isZstd(File file)
+    {
+        return file.getName().endsWith(".zst") || file.getName().endsWith(".zstd");
+    }
+
+    /**
+     * @param file file to read, decompressed if its extension says so
+     * @param bufferSize size of the read buffers
+     * @return stream of the uncompressed bytes
+     * @throws IOException
+     */
+    static InputStream openInput(File file, int bufferSize) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        if (!isCompressed(file))
+        {
+            return in;
+        }
+
+        try
+        {
+            in = new BufferedInputStream(in, bufferSize);
+            if (isGzip(file))
+            {
+                in = new GZIPInputStream(in, bufferSize);
+            }
+            else if (isXz(file))
+            {
+                in = (InputStream) construct(XZ_INPUT, new String[] {InputStream.class.getName()}, in);
+            }
+            else
+            {
+                in = (InputStream) construct(ZSTD_INPUT, new String[] {InputStream.class.getName()}, in);
+            }
+        }
+        catch (IOException ex)
+        {
+            in.close();
+            throw ex;
+        }
+        return new ReadAheadInputStream(in, bufferSize);
+    }
+
+    /**
+     * @param file file to write, compressed if its extension says so
+     * @param bufferSize size of the write buffers, and of the gzip blocks
+     * @return channel taking the uncompressed bytes
+     * @throws IOException
+     */
+    static WritableByteChannel openOutput(File file, int bufferSize) throws IOException
+    {
+        FileOutputStream fileOut = new FileOutputStream(file);
+        if (!isCompressed(file))
+        {
+            return fileOut.getChannel();
+        }
+
+        OutputStream out = new BufferedOutputStream(fileOut, bufferSize);
+        try
+        {
+            if (isGzip(file))
+            {
+                out = new ParallelGzipOutputStream(out, bufferSize, Runtime.getRuntime().availableProcessors());
+            }
+            else if (isXz(file))
+            {
+                Object options = construct(XZ_OPTIONS, new String[0]);
+                out = new WriteBehindOutputStream((OutputStream) construct(XZ_OUTPUT, new String[] {OutputStream.class.getName(), XZ_FILTER_OPTIONS}, out, options), bufferSize);
+            }
+            else
+            {
+                out = new WriteBehindOutputStream((OutputStream) construct(ZSTD_OUTPUT, new String[] {OutputStream.class.getName()}, out), bufferSize);
+            }
+        }
+        catch (IOException ex)
+        {
+            out.close();
+            throw ex;
+        }
+        return Channels.newChannel(out);
+    }
+
+    /**
+     * Create an instance of a class that may not be on the classpath.
+     * @param className class to instantiate
+     * @param parameterTypes names of the constructor parameter types
+     * @param args constructor arguments
+     * @throws IOException if the class is missing, or the constructor fails
+     */
+    private static Object construct(String className, String[] parameterTypes, Object... args) throws IOException
+    {
+        try
+        {
+            ClassLoader loader = CompressedIO.class.getClassLoader();
+            Class<?>[] types = new Class<?>[parameterTypes.length];
+            for (int i = 0; i < types.length; i++)
+            {
+                types[i] = Class.forName(parameterTypes[i], false, loader);
+            }
+            Constructor<?> constructor = Class.forName(className, true, loader).getConstructor(types);
+            return constructor.newInstance(args);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            throw new IOException(String.format("%s is not on the classpath, needed for this file type", ex.getMessage()));
+        }
+        catch (InvocationTargetException ex)
+        {
+            Throwable cause = ex.getCause();
+            throw cause instanceof IOException ? (IOException) cause : (IOException) new IOException(String.valueOf(cause)).initCause(cause);
+        }
+        catch (Exception ex)
+        {
+            throw (IOException) new IOException("Can not create " + className).initCause(ex);
+        }
+    }
+}
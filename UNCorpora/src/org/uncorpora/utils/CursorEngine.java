@@ -0,0 +1,408 @@
+package org.uncorpora.utils;
+
+import java.io.Reader;
+import java.io.Writer;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Processor engine on top of the StAX cursor API. Copies events straight from the
+ * XMLStreamReader to the XMLStreamWriter without creating an XMLEvent per event.
+ * The only events held back are the ones at the start of a TU that the rewriter has
+ * not decided on yet (e.g. the props before the first TUV with -novote); those are kept
+ * as plain strings in arrays reused from one TU to the next.
+ *
+ * Produces the same XML as the event engine in Processor. Attributes are written in document
+ * order, while the event engine writes them in whatever order the StAX implementation's
+ * StartElement hands them out (the JDK's keeps them in a hash map), so the bytes may differ.
+ */
+final class CursorEngine
+{
+    private final TURewriter rewriter;
+
+    private XMLStreamReader reader;
+    private XMLStreamWriter writer;
+
+    /** Per held event: type, offset into heldStrings, namespace count, attribute count */
+    private int[] heldInts = new int[4 * 32];
+    private String[] heldStrings = new String[128];
+    private int heldCount;
+    private int heldStringCount;
+    /** Estimated memory of the held events, bounded by the rewriter's maxTUBytes */
+    private long heldBytes;
+
+    CursorEngine(TURewriter rewriter)
+    {
+        this.rewriter = rewriter;
+    }
+
+    /**
+     * Process the whole document.
+     * @param inputFactory factory to create the cursor with
+     * @param in source document
+     * @param outputFactory factory to create the writer with
+     * @param out destination, flushed but not closed
+     * @throws XMLStreamException
+     */
+    void run(XMLInputFactory inputFactory, Reader in, XMLOutputFactory outputFactory, Writer out) throws XMLStreamException
+    {
+        reader = inputFactory.createXMLStreamReader(in);
+
+        //The XML declaration goes out through the event API, as in the event engine:
+        //only the event writer knows how to write the standalone flag as it was read
+        XMLEventWriter declarationWriter = outputFactory.createXMLEventWriter(out);
+        declarationWriter.add(inputFactory.createXMLEventReader(reader).nextEvent());
+        declarationWriter.flush();
+
+        writer = outputFactory.createXMLStreamWriter(out);
+
+        //copy the head
+        boolean tuSeen = copyUntilTU(false);
+        while (tuSeen)
+        {
+            copyTU();
+            tuSeen = copyUntilTU(true); //whatever is between TUs, without leading white space
+        }
+        rewriter.clock().stop();
+
+        writer.flush();
+        reader.close();
+    }
+
+    /**
+     * Copy events until the start of TU element or the end of the document.
+     * @param trim skip the white space before the first other event
+     * @return true if the cursor stopped at the start of TU
+     */
+    private boolean copyUntilTU(boolean trim) throws XMLStreamException
+    {
+        while (reader.hasNext())
+        {
+            int type = reader.next();
+            if (type == XMLStreamConstants.START_ELEMENT && isTU())
+            {
+                return true;
+            }
+            if (trim)
+            {
+                if (isText(type) && reader.isWhiteSpace())
+                {
+                    continue;
+                }
+                trim = false;
+            }
+            copyEvent(type);
+        }
+        return false;
+    }
+
+    /**
+     * Copy one TU through the rewriter. Starts with the cursor at the TU start, finishes at the TU end.
+     */
+    private void copyTU() throws XMLStreamException
+    {
+        rewriter.startTU();
+        rewriter.metrics().tusRead(1);
+        RunMetrics.Clock clock = rewriter.clock();
+        heldCount = 0;
+        heldStringCount = 0;
+        heldBytes = 0;
+
+        int type = reader.getEventType();
+        while (true)
+        {
+            boolean tuEnd = type == XMLStreamConstants.END_ELEMENT && isTU();
+            boolean keep = rewriter.accept(reader);
+            if (tuEnd)
+            {
+                rewriter.endTU();
+            }
+            clock.lap(RunMetrics.Stage.REWRITE);
+
+            if (rewriter.isDropped())
+            {
+                heldCount = 0;
+                heldStringCount = 0;
+                if (!tuEnd)
+                {
+                    skipToEndOfTU();
+                    clock.lap(RunMetrics.Stage.PARSE);
+                }
+                return;
+            }
+
+            if (tuEnd || rewriter.isDecided())
+            {
+                writeHeld();
+                if (keep)
+                {
+                    copyEvent(type);
+                }
+            }
+            else if (keep)
+            {
+                hold(type);
+                if (heldBytes > rewriter.maxTUBytes())
+                {
+                    if (rewriter.canStream())
+                    {
+                        rewriter.stream();
+                        writeHeld();
+                    }
+                    else
+                    {
+                        Processor.reportSkipped(heldTU(), "holds more than -maxTUMemory before it can be written");
+                        rewriter.dropOversized();
+                        heldCount = 0;
+                        heldStringCount = 0;
+                        skipToEndOfTU();
+                        clock.lap(RunMetrics.Stage.PARSE);
+                        return;
+                    }
+                }
+            }
+            clock.lap(RunMetrics.Stage.WRITE);
+
+            if (tuEnd)
+            {
+                return;
+            }
+            type = reader.next();
+            clock.lap(RunMetrics.Stage.PARSE);
+        }
+    }
+
+    private void skipToEndOfTU() throws XMLStreamException
+    {
+        while (true)
+        {
+            if (reader.next() == XMLStreamConstants.END_ELEMENT && isTU())
+            {
+                return;
+            }
+        }
+    }
+
+    private boolean isTU()
+    {
+        return TMXSymbols.element(reader.getNamespaceURI(), reader.getLocalName()) == TMXSymbols.TU;
+    }
+
+    private static boolean isText(int type)
+    {
+        return type == XMLStreamConstants.CHARACTERS || type == XMLStreamConstants.CDATA || type == XMLStreamConstants.SPACE;
+    }
+
+    /**
+     * Write the current event as XMLEventWriter writes the matching XMLEvent, with the attributes
+     * in document order.
+     */
+    private void copyEvent(int type) throws XMLStreamException
+    {
+        switch (type)
+        {
+            case XMLStreamConstants.START_ELEMENT:
+                writer.writeStartElement(nonNull(reader.getPrefix()), reader.getLocalName(), nonNull(reader.getNamespaceURI()));
+                int nsCount = reader.getNamespaceCount();
+                for (int i = 0; i < nsCount; i++)
+                {
+                    writer.writeNamespace(nonNull(reader.getNamespacePrefix(i)), reader.getNamespaceURI(i));
+                }
+                int attCount = reader.getAttributeCount();
+                for (int i = 0; i < attCount; i++)
+                {
+                    writer.writeAttribute(nonNull(reader.getAttributePrefix(i)), nonNull(reader.getAttributeNamespace(i)),
+                            reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                }
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                writer.writeEndElement();
+                break;
+            case XMLStreamConstants.CHARACTERS:
+                writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                break;
+            case XMLStreamConstants.CDATA:
+                writer.writeCData(reader.getText());
+                break;
+            case XMLStreamConstants.COMMENT:
+                writer.writeComment(reader.getText());
+                break;
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                break;
+            case XMLStreamConstants.ENTITY_REFERENCE:
+                writer.writeEntityRef(reader.getLocalName());
+                break;
+            case XMLStreamConstants.DTD:
+                writer.writeDTD(reader.getText());
+                break;
+            case XMLStreamConstants.END_DOCUMENT:
+                writer.writeEndDocument();
+                break;
+            default:
+                //SPACE: XMLEventWriter does not write ignorable white space either
+                break;
+        }
+    }
+
+    /**
+     * Keep the current event as strings until the rewriter decides on the TU.
+     */
+    private void hold(int type)
+    {
+        int nsCount = 0;
+        int attCount = 0;
+        int stringStart = heldStringCount;
+        switch (type)
+        {
+            case XMLStreamConstants.START_ELEMENT:
+                nsCount = reader.getNamespaceCount();
+                attCount = reader.getAttributeCount();
+                ensureStrings(3 + 2 * nsCount + 4 * attCount);
+                heldStrings[heldStringCount++] = nonNull(reader.getPrefix());
+                heldStrings[heldStringCount++] = reader.getLocalName();
+                heldStrings[heldStringCount++] = nonNull(reader.getNamespaceURI());
+                for (int i = 0; i < nsCount; i++)
+                {
+                    heldStrings[heldStringCount++] = nonNull(reader.getNamespacePrefix(i));
+                    heldStrings[heldStringCount++] = reader.getNamespaceURI(i);
+                }
+                for (int i = 0; i < attCount; i++)
+                {
+                    heldStrings[heldStringCount++] = nonNull(reader.getAttributePrefix(i));
+                    heldStrings[heldStringCount++] = nonNull(reader.getAttributeNamespace(i));
+                    heldStrings[heldStringCount++] = reader.getAttributeLocalName(i);
+                    heldStrings[heldStringCount++] = reader.getAttributeValue(i);
+                }
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.COMMENT:
+            case XMLStreamConstants.DTD:
+                ensureStrings(1);
+                heldStrings[heldStringCount++] = reader.getText();
+                break;
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                ensureStrings(2);
+                heldStrings[heldStringCount++] = reader.getPITarget();
+                heldStrings[heldStringCount++] = reader.getPIData();
+                break;
+            case XMLStreamConstants.ENTITY_REFERENCE:
+                ensureStrings(1);
+                heldStrings[heldStringCount++] = reader.getLocalName();
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                break;
+            default:
+                return; //not written anyway
+        }
+
+        if (4 * heldCount == heldInts.length)
+        {
+            int[] newInts = new int[heldInts.length * 2];
+            System.arraycopy(heldInts, 0, newInts, 0, heldInts.length);
+            heldInts = newInts;
+        }
+        heldBytes += TUWindow.EVENT_BYTES;
+        for (int i = stringStart; i < heldStringCount; i++)
+        {
+            heldBytes += 2L * heldStrings[i].length();
+        }
+        int base = 4 * heldCount++;
+        heldInts[base] = type;
+        heldInts[base + 1] = stringStart;
+        heldInts[base + 2] = nsCount;
+        heldInts[base + 3] = attCount;
+    }
+
+    private void ensureStrings(int extra)
+    {
+        if (heldStringCount + extra > heldStrings.length)
+        {
+            String[] newStrings = new String[Math.max(heldStrings.length * 2, heldStringCount + extra)];
+            System.arraycopy(heldStrings, 0, newStrings, 0, heldStringCount);
+            heldStrings = newStrings;
+        }
+    }
+
+    /**
+     * @return which TU is held, by the tuid of its start element, the first event held
+     */
+    private String heldTU()
+    {
+        int s = heldInts[1] + 3 + 2 * heldInts[2];
+        for (int i = 0; i < heldInts[3]; i++, s += 4)
+        {
+            if (heldStrings[s + 1].length() == 0 && "tuid".equals(heldStrings[s + 2]))
+            {
+                return "tuid=" + heldStrings[s + 3];
+            }
+        }
+        return "before line " + reader.getLocation().getLineNumber();
+    }
+
+    /**
+     * Write out the held events, in order, and forget them.
+     */
+    private void writeHeld() throws XMLStreamException
+    {
+        for (int e = 0; e < heldCount; e++)
+        {
+            int base = 4 * e;
+            int s = heldInts[base + 1];
+            switch (heldInts[base])
+            {
+                case XMLStreamConstants.START_ELEMENT:
+                    writer.writeStartElement(heldStrings[s], heldStrings[s + 1], heldStrings[s + 2]);
+                    s += 3;
+                    for (int i = 0; i < heldInts[base + 2]; i++, s += 2)
+                    {
+                        writer.writeNamespace(heldStrings[s], heldStrings[s + 1]);
+                    }
+                    for (int i = 0; i < heldInts[base + 3]; i++, s += 4)
+                    {
+                        writer.writeAttribute(heldStrings[s], heldStrings[s + 1], heldStrings[s + 2], heldStrings[s + 3]);
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    writer.writeEndElement();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                    writer.writeCharacters(heldStrings[s]);
+                    break;
+                case XMLStreamConstants.CDATA:
+                    writer.writeCData(heldStrings[s]);
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    writer.writeComment(heldStrings[s]);
+                    break;
+                case XMLStreamConstants.DTD:
+                    writer.writeDTD(heldStrings[s]);
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    writer.writeProcessingInstruction(heldStrings[s], heldStrings[s + 1]);
+                    break;
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    writer.writeEntityRef(heldStrings[s]);
+                    break;
+            }
+        }
+        for (int i = 0; i < heldStringCount; i++)
+        {
+            heldStrings[i] = null;
+        }
+        heldCount = 0;
+        heldStringCount = 0;
+        heldBytes = 0;
+    }
+
+    private static String nonNull(String value)
+    {
+        return value == null ? "" : value;
+    }
+}
@@ -0,0 +1,278 @@
+package org.uncorpora.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Search engine feed: every TU that survives the rewrite rules becomes one flat document, with
+ * the TU id, its session, whether it holds voting information and one text field per kept
+ * language, text_en, text_fr, ... A field is left out when the TU has no such value.
+ * The values are taken by {@link TUText}, as for the text export.
+ *
+ * Documents go out as JSON lines, or as Solr update XML, an add element per batch inside one
+ * update element. The writer is flushed after each batch, so an indexer reading the output can
+ * start on the first batches while the rest is being processed. A document is built in a reused
+ * buffer and written in one go; nothing goes through XML serialisation.
+ */
+final class DocumentFeed
+{
+    /** Output formats */
+    enum Format
+    {
+        JSON, SOLR
+    }
+
+    private final TURewriter rewriter;
+    private final Format format;
+    private final int batchSize;
+    private final Writer writer;
+    /** Field name of each kept language */
+    private final String[] fields;
+    private final TUText text;
+    private final StringBuilder document = new StringBuilder(4096);
+    private char[] chars = new char[4096];
+    private int inBatch;
+
+    /**
+     * @param rewriter rules to apply before building the documents
+     * @param langs codes of the kept languages, as in VALID_LANGS
+     * @param format format of the output
+     * @param batchSize documents written between two flushes
+     * @param writer destination, closed at the end of the run
+     */
+    DocumentFeed(TURewriter rewriter, String[] langs, Format format, int batchSize, Writer writer)
+    {
+        this.rewriter = rewriter;
+        this.format = format;
+        this.batchSize = batchSize;
+        this.writer = writer;
+        this.fields = new String[langs.length];
+        this.text = new TUText(langs);
+        for (int i = 0; i < langs.length; i++)
+        {
+            fields[i] = "text_" + langs[i].toLowerCase();
+        }
+    }
+
+    /**
+     * Feed the whole document.
+     * @param eventReader source of events
+     * @param streamReader cursor eventReader was created over, or null, to skip dropped TUs on
+     * @throws XMLStreamException
+     * @throws IOException
+     */
+    void run(XMLEventReader eventReader, XMLStreamReader streamReader) throws XMLStreamException, IOException
+    {
+        try
+        {
+            if (format == Format.SOLR)
+            {
+                writer.write("<update>\n");
+            }
+            TUWindow buffer = new TUWindow();
+
+            //the head holds no documents
+            boolean tuSeen = Processor.collectUntilTU(eventReader, buffer, false);
+            buffer.clear();
+
+            while (tuSeen)
+            {
+                tuSeen = Processor.collectTU(eventReader, streamReader, buffer, rewriter, null); //only kept events, none if dropped
+                if (!tuSeen)
+                {
+                    throw new XMLStreamException("Input ended inside a TU");
+                }
+                if (buffer.size() > 0)
+                {
+                    feedTU(buffer);
+                    rewriter.clock().lap(RunMetrics.Stage.WRITE);
+                }
+                buffer.clear();
+
+                tuSeen = Processor.collectUntilTU(eventReader, buffer, false);
+                buffer.clear();
+            }
+            rewriter.clock().stop();
+
+            if (inBatch > 0)
+            {
+                endBatch();
+            }
+            if (format == Format.SOLR)
+            {
+                writer.write("</update>\n");
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    private void feedTU(TUWindow tu) throws IOException
+    {
+        text.read(tu);
+        if (format == Format.JSON)
+        {
+            writeJSON();
+        }
+        else
+        {
+            writeSolr();
+        }
+
+        if (++inBatch == batchSize)
+        {
+            endBatch();
+        }
+    }
+
+    private void writeJSON() throws IOException
+    {
+        document.append('{');
+        if (text.tuid() != null)
+        {
+            document.append("\"id\": ");
+            appendJSON(text.tuid());
+            document.append(", ");
+        }
+        if (text.hasSession())
+        {
+            document.append("\"session\": ");
+            appendJSON(text.session());
+            document.append(", ");
+        }
+        document.append("\"vote\": ").append(text.hasVote());
+        for (int l = 0; l < fields.length; l++)
+        {
+            if (text.text(l).length() > 0)
+            {
+                document.append(", \"").append(fields[l]).append("\": ");
+                appendJSON(text.text(l));
+            }
+        }
+        document.append("}\n");
+        flushDocument();
+    }
+
+    private void writeSolr() throws IOException
+    {
+        if (inBatch == 0)
+        {
+            document.append("<add>\n");
+        }
+        document.append("<doc>");
+        if (text.tuid() != null)
+        {
+            document.append("<field name=\"id\">");
+            appendXML(text.tuid());
+            document.append("</field>");
+        }
+        if (text.hasSession())
+        {
+            document.append("<field name=\"session\">");
+            appendXML(text.session());
+            document.append("</field>");
+        }
+        document.append("<field name=\"vote\">").append(text.hasVote()).append("</field>");
+        for (int l = 0; l < fields.length; l++)
+        {
+            if (text.text(l).length() > 0)
+            {
+                document.append("<field name=\"").append(fields[l]).append("\">");
+                appendXML(text.text(l));
+                document.append("</field>");
+            }
+        }
+        document.append("</doc>\n");
+        flushDocument();
+    }
+
+    /**
+     * Close the batch and hand it to the reader of the output.
+     */
+    private void endBatch() throws IOException
+    {
+        if (format == Format.SOLR)
+        {
+            writer.write("</add>\n");
+        }
+        writer.flush();
+        inBatch = 0;
+    }
+
+    /**
+     * Write the document through a reused array, not a String.
+     */
+    private void flushDocument() throws IOException
+    {
+        int length = document.length();
+        if (chars.length < length)
+        {
+            chars = new char[Math.max(length, 2 * chars.length)];
+        }
+        document.getChars(0, length, chars, 0);
+        writer.write(chars, 0, length);
+        document.setLength(0);
+    }
+
+    private void appendJSON(CharSequence value)
+    {
+        document.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+                case '"':
+                case '\\':
+                    document.append('\\').append(c);
+                    break;
+                case '\n':
+                    document.append("\\n");
+                    break;
+                case '\r':
+                    document.append("\\r");
+                    break;
+                case '\t':
+                    document.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                    {
+                        document.append(String.format("\\u%04x", (int) c));
+                    }
+                    else
+                    {
+                        document.append(c);
+                    }
+            }
+        }
+        document.append('"');
+    }
+
+    private void appendXML(CharSequence value)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+                case '&':
+                    document.append("&amp;");
+                    break;
+                case '<':
+                    document.append("&lt;");
+                    break;
+                case '>':
+                    document.append("&gt;");
+                    break;
+                default:
+                    document.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package org.uncorpora.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Processor engine that writes several differently filtered corpora in one read pass.
+ * The calling thread parses the document once and cuts it into chunks of TUs; every output has
+ * a thread of its own that rewrites the shared chunks with its own rules and writes them out.
+ * Events are never modified, so the outputs only share them for reading; each output marks its
+ * removals in a view of the chunk's window, and the last output done with a chunk hands it back
+ * to the reader for the next one.
+ *
+ * Each output has a bounded queue of chunks, so the slowest output sets the pace of the reading.
+ * Every output is the same as a separate run of the event engine with its flags, except that
+ * a TU past -maxTUMemory is always skipped: it is read once for all the outputs.
+ */
+final class FanOutEngine
+{
+    /** Marks the end of the chunks in the queues */
+    private static final ParallelEngine.Chunk END = new ParallelEngine.Chunk();
+
+    private final int queueDepth;
+    private final RunMetrics metrics;
+    private final long maxTUBytes;
+    private final List<Output> outputs = new ArrayList<Output>();
+
+    /** Chunks all the outputs are done with, to reuse their storage */
+    private final ConcurrentLinkedQueue<ParallelEngine.Chunk> freeChunks = new ConcurrentLinkedQueue<ParallelEngine.Chunk>();
+
+    private final StaxBackend backend;
+
+    /** Set by a failed output, so that the reader stops early */
+    private volatile boolean failed;
+
+    /**
+     * @param queueDepth number of chunks each output can fall behind the reader
+     * @param metrics counters of the reading; each output counts its TUs with the metrics of its rewriter
+     * @param maxTUBytes estimated memory one TU may hold while it is read
+     * @param backend StAX implementation of the output threads
+     */
+    FanOutEngine(int queueDepth, RunMetrics metrics, long maxTUBytes, StaxBackend backend)
+    {
+        this.backend = backend;
+        this.queueDepth = queueDepth;
+        this.metrics = metrics;
+        this.maxTUBytes = maxTUBytes;
+    }
+
+    /**
+     * @param rewriter rules for this output
+     * @param out destination, closed at the end of the run
+     */
+    void addOutput(TURewriter rewriter, Writer out)
+    {
+        outputs.add(new Output(rewriter, out));
+    }
+
+    /**
+     * Read the whole document once, feeding every output.
+     * @param eventReader source of events
+     * @throws XMLStreamException
+     * @throws IOException
+     */
+    void run(XMLEventReader eventReader) throws XMLStreamException, IOException
+    {
+        ExecutorService threads = Executors.newFixedThreadPool(outputs.size());
+        List<Future<Object>> written = new ArrayList<Future<Object>>();
+        for (Output output : outputs)
+        {
+            written.add(threads.submit(output));
+        }
+
+        try
+        {
+            TUWindow buffer = new TUWindow();
+
+            //the head goes out as a chunk without TUs
+            ParallelEngine.Chunk head = newChunk();
+            boolean tuSeen = Processor.collectUntilTU(eventReader, head.events, false);
+            put(head);
+
+            while (tuSeen && !failed)
+            {
+                ParallelEngine.Chunk chunk = newChunk();
+                long start = System.nanoTime();
+                tuSeen = ParallelEngine.readChunk(eventReader, chunk, buffer, maxTUBytes);
+                metrics.addTime(RunMetrics.Stage.PARSE, System.nanoTime() - start);
+                metrics.tusRead(chunk.tuCount);
+                chunk.countOversized(metrics);
+                if (!tuSeen)
+                {
+                    //the footer is what follows the last TU, so it gets trimmed the same way
+                    chunk.addAll(buffer);
+                    buffer.clear();
+                    tuSeen = Processor.collectUntilTU(eventReader, chunk.events, false);
+                    assert !tuSeen; //if we see a TU now, something is very wrong
+                }
+                put(chunk);
+            }
+        }
+        finally
+        {
+            put(END);
+            threads.shutdown();
+        }
+
+        Throwable failure = null;
+        for (Future<Object> output : written)
+        {
+            try
+            {
+                output.get();
+            }
+            catch (InterruptedException ex)
+            {
+                throw ParallelEngine.interrupted(ex);
+            }
+            catch (ExecutionException ex)
+            {
+                if (failure == null)
+                {
+                    failure = ex.getCause();
+                }
+            }
+        }
+        if (failure != null)
+        {
+            ParallelEngine.rethrow(failure);
+        }
+    }
+
+    private ParallelEngine.Chunk newChunk()
+    {
+        ParallelEngine.Chunk chunk = freeChunks.poll();
+        return chunk != null ? chunk : new ParallelEngine.Chunk();
+    }
+
+    private void put(ParallelEngine.Chunk chunk) throws InterruptedIOException
+    {
+        chunk.readers.set(outputs.size());
+        try
+        {
+            for (Output output : outputs)
+            {
+                output.pending.put(chunk);
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            throw ParallelEngine.interrupted(ex);
+        }
+    }
+
+    /**
+     * Hand the chunk back for reuse once the last output is done with it.
+     */
+    private void release(ParallelEngine.Chunk chunk)
+    {
+        if (chunk.readers.decrementAndGet() == 0)
+        {
+            chunk.clear();
+            freeChunks.add(chunk);
+        }
+    }
+
+    /**
+     * One filtered corpus: rewrites and writes the chunks in queue order until END.
+     * After a failure keeps draining the queue, so that the reader does not block on it.
+     */
+    private final class Output implements Callable<Object>
+    {
+        private final BlockingQueue<ParallelEngine.Chunk> pending = new ArrayBlockingQueue<ParallelEngine.Chunk>(queueDepth);
+        private final TURewriter rewriter;
+        private final Writer out;
+
+        Output(TURewriter rewriter, Writer out)
+        {
+            this.rewriter = rewriter;
+            this.out = out;
+        }
+
+        public Object call() throws Exception
+        {
+            Exception failure = null;
+            try
+            {
+                XMLEventWriter eventWriter = null;
+                TUWindow window = new TUWindow();
+                ParallelEngine.Chunk chunk;
+                while ((chunk = pending.take()) != END)
+                {
+                    if (failure != null)
+                    {
+                        release(chunk);
+                        continue;
+                    }
+                    try
+                    {
+                        if (eventWriter == null)
+                        {
+                            eventWriter = backend.newOutputFactory().createXMLEventWriter(out);
+                        }
+                        window.view(chunk.events);
+                        long start = System.nanoTime();
+                        for (int i = 0; i < chunk.tuCount; i++)
+                        {
+                            int tuEnd = chunk.tuBounds[2 * i + 1];
+                            rewriter.rewrite(window, chunk.tuBounds[2 * i], tuEnd);
+                            Processor.trimWhiteSpaces(window, tuEnd);
+                        }
+                        long rewritten = System.nanoTime();
+                        rewriter.metrics().addTime(RunMetrics.Stage.REWRITE, rewritten - start);
+                        Processor.copyOutEvents(eventWriter, window);
+                        rewriter.metrics().addTime(RunMetrics.Stage.WRITE, System.nanoTime() - rewritten);
+                    }
+                    catch (Exception ex)
+                    {
+                        failure = ex;
+                        failed = true;
+                    }
+                    window.clear();
+                    release(chunk);
+                }
+                if (failure == null && eventWriter != null)
+                {
+                    eventWriter.flush();
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            if (failure != null)
+            {
+                throw failure;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package org.uncorpora.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Set of 64-bit fingerprints kept outside the heap, to tell whether a TU was seen before.
+ * An open-addressing table with linear probing, cut into segments by the top bits of the
+ * fingerprint. Each segment is a memory mapping of a temporary file, deleted as soon as it is
+ * mapped: the table costs no heap, is not bounded by the direct memory limit, and pages of it
+ * can go out to disk when memory is short. A segment doubles by rehashing into a new mapping
+ * once it is three quarters full; the old mapping goes away with its buffer.
+ *
+ * Fingerprints are built with {@link #hash} over the text of a TU and mixed with {@link #finish}.
+ * Two different texts share a fingerprint with a chance of about n^2 / 2^65 over n TUs.
+ */
+final class FingerprintSet
+{
+    /** Start value of a fingerprint */
+    static final long SEED = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int INITIAL_SLOTS = 1 << 14;
+    /** Largest segment that fits one mapping, 1 GB */
+    private static final int MAX_SLOTS = 1 << 27;
+
+    private final File directory;
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    /**
+     * @param directory where to create the temporary files, null for the default temporary directory
+     */
+    FingerprintSet(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Add text to a fingerprint, FNV-1a over its characters. Text hashed in pieces
+     * gives the same fingerprint as hashed in one go.
+     */
+    static long hash(long fingerprint, char[] text, int start, int length)
+    {
+        for (int i = start; i < start + length; i++)
+        {
+            fingerprint = (fingerprint ^ text[i]) * PRIME;
+        }
+        return fingerprint;
+    }
+
+    static long hash(long fingerprint, String text)
+    {
+        for (int i = 0; i < text.length(); i++)
+        {
+            fingerprint = (fingerprint ^ text.charAt(i)) * PRIME;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Add a byte to a fingerprint, for fingerprints of raw input.
+     */
+    static long hash(long fingerprint, byte b)
+    {
+        return (fingerprint ^ (b & 0xff)) * PRIME;
+    }
+
+    /**
+     * Add a separator that no character can be mistaken for, e.g. between two pieces of text.
+     * @param value anything that tells separators apart, up to 16 bits
+     */
+    static long separator(long fingerprint, int value)
+    {
+        return (fingerprint ^ (0x10000 | value)) * PRIME;
+    }
+
+    /**
+     * Spread the bits of a fingerprint, so that its top and bottom bits are good for the table.
+     */
+    static long finish(long fingerprint)
+    {
+        fingerprint ^= fingerprint >>> 33;
+        fingerprint *= 0xff51afd7ed558ccdL;
+        fingerprint ^= fingerprint >>> 33;
+        fingerprint *= 0xc4ceb9fe1a85ec53L;
+        fingerprint ^= fingerprint >>> 33;
+        return fingerprint;
+    }
+
+    /**
+     * @param fingerprint finished fingerprint
+     * @return true if it was not in the set yet
+     * @throws IllegalStateException if the table can not grow
+     */
+    boolean add(long fingerprint)
+    {
+        if (fingerprint == 0)
+        {
+            fingerprint = 1; //0 marks a free slot
+        }
+        int s = (int) (fingerprint >>> (64 - SEGMENT_BITS));
+        Segment segment;
+        synchronized (segments)
+        {
+            segment = segments[s];
+            if (segment == null)
+            {
+                segment = segments[s] = new Segment(map(INITIAL_SLOTS));
+            }
+        }
+        synchronized (segment)
+        {
+            if (!segment.add(fingerprint))
+            {
+                return false;
+            }
+            if (segment.size > segment.slots.capacity() / 4 * 3)
+            {
+                segment.grow();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return number of fingerprints in the set
+     */
+    long size()
+    {
+        long size = 0;
+        synchronized (segments)
+        {
+            for (Segment segment : segments)
+            {
+                if (segment != null)
+                {
+                    synchronized (segment)
+                    {
+                        size += segment.size;
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Map a new zeroed table of the given number of slots.
+     */
+    private LongBuffer map(int slots)
+    {
+        try
+        {
+            File file = File.createTempFile("uncorpora-dedup", ".tmp", directory);
+            RandomAccessFile table = new RandomAccessFile(file, "rw");
+            try
+            {
+                table.setLength(8L * slots);
+                return table.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8L * slots).asLongBuffer();
+            }
+            finally
+            {
+                table.close(); //the mapping stays valid
+                if (!file.delete())
+                {
+                    file.deleteOnExit(); //can not delete a mapped file on some systems
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Can not map the dedup table: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * One table, holding the fingerprints with the same top bits.
+     */
+    private final class Segment
+    {
+        LongBuffer slots;
+        int size;
+
+        Segment(LongBuffer slots)
+        {
+            this.slots = slots;
+        }
+
+        boolean add(long fingerprint)
+        {
+            int mask = slots.capacity() - 1;
+            for (int i = (int) fingerprint & mask; ; i = (i + 1) & mask)
+            {
+                long slot = slots.get(i);
+                if (slot == 0)
+                {
+                    slots.put(i, fingerprint);
+                    size++;
+                    return true;
+                }
+                if (slot == fingerprint)
+                {
+                    return false;
+                }
+            }
+        }
+
+        void grow()
+        {
+            if (slots.capacity() >= MAX_SLOTS)
+            {
+                throw new IllegalStateException("Dedup table is full: " + size + " fingerprints in one segment");
+            }
+            LongBuffer old = slots;
+            slots = map(2 * old.capacity());
+            size = 0;
+            for (int i = 0; i < old.capacity(); i++)
+            {
+                long fingerprint = old.get(i);
+                if (fingerprint != 0)
+                {
+                    add(fingerprint);
+                }
+            }
+        }
+    }
+}
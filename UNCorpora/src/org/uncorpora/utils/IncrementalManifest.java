@@ -0,0 +1,470 @@
+package org.uncorpora.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Fingerprints of the TU ranges of a split run, saved next to the output as &lt;output&gt;.incremental,
+ * so that the next run over a grown or edited input only rewrites the ranges that changed and
+ * copies the output of the others from the previous output.
+ *
+ * Ranges are cut by content: after a TU whose own fingerprint has its low CUT_BITS bits clear,
+ * about every 2^CUT_BITS TUs. A cut depends only on the TU before it, so new or edited TUs only
+ * change the ranges they fall in, wherever they are in the file. The fingerprint of a range covers
+ * every byte of it, and the output of a range depends only on those bytes and the rules, so an
+ * unchanged range gives the same output as before: the result is the same as a full run.
+ * The TU counters of each range are saved as well and added to the metrics of a run that copies
+ * the range, so its statistics are those of a full run too.
+ *
+ * Layout, big endian: magic, version, rules (UTF), header output length, total output length,
+ * number of ranges, number of TU counters per range, then per range its fingerprint, input
+ * length, output length and TU counters (longs), see RunMetrics.counts.
+ * The manifest only applies to the output it was written with, under the same rules.
+ *
+ * At the start of a run the previous output is moved aside to &lt;output&gt;.previous and read from
+ * there; it is deleted once the new output and manifest are complete. A run that fails leaves it,
+ * and the next run starts from it again.
+ */
+final class IncrementalManifest
+{
+    private static final int MAGIC = 0x54554943; //TUIC
+    private static final int VERSION = 1;
+    /** A range ends after a TU with this many low fingerprint bits clear, 256 TUs on average */
+    private static final int CUT_BITS = 8;
+    /** A range ends at the next TU start past this size anyway, to bound the memory of a task */
+    private static final long MAX_RANGE_SIZE = 32L << 20;
+    /** Input a worker fingerprints the TUs of at a time */
+    private static final long SCAN_SIZE = 8L << 20;
+    /** Bytes a worker reads at once */
+    private static final int SCAN_BLOCK = 1 << 16;
+
+    private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final File outFile;
+    private final File previous;
+    private final String rules;
+
+    /** Ranges of the previous output by fingerprint */
+    private final Map<Long, PreviousRange> previousRanges;
+
+    /** Ranges of this run, in order: fingerprint and input length */
+    private long[] fingerprints;
+    private long[] inputLengths;
+    /** Output length and TU counters of each range written so far */
+    private final List<Long> outputLengths = new ArrayList<Long>();
+    private final List<long[]> counts = new ArrayList<long[]>();
+    private long headerLength = -1;
+    private int reused;
+
+    private IncrementalManifest(File outFile, String rules, Map<Long, PreviousRange> previousRanges)
+    {
+        this.file = manifestFile(outFile);
+        this.outFile = outFile;
+        this.previous = new File(outFile.getPath() + ".previous");
+        this.rules = rules;
+        this.previousRanges = previousRanges;
+    }
+
+    static File manifestFile(File outFile)
+    {
+        return new File(outFile.getPath() + ".incremental");
+    }
+
+    /**
+     * Start an incremental run: move the previous output aside and load its manifest, if it was
+     * written with the same rules and still matches the output.
+     * @param outFile output of the run, uncompressed
+     * @param rules flags the output depends on, as a string
+     * @throws IOException if the previous output can not be moved aside
+     */
+    static IncrementalManifest start(File outFile, String rules) throws IOException
+    {
+        File previous = new File(outFile.getPath() + ".previous");
+        if (!previous.exists() && outFile.exists() && !outFile.renameTo(previous))
+        {
+            throw new IOException("Can not move the previous output aside to " + previous);
+        }
+
+        Map<Long, PreviousRange> ranges = new HashMap<Long, PreviousRange>();
+        int countsLength = new RunMetrics().counts().length;
+        File file = manifestFile(outFile);
+        if (previous.exists() && file.exists())
+        {
+            try
+            {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+                try
+                {
+                    if (in.readInt() == MAGIC && in.readInt() == VERSION && in.readUTF().equals(rules))
+                    {
+                        long offset = in.readLong();
+                        long outputLength = in.readLong();
+                        int count = in.readInt();
+                        if (outputLength == previous.length() && in.readInt() == countsLength)
+                        {
+                            for (int i = 0; i < count; i++)
+                            {
+                                long fingerprint = in.readLong();
+                                PreviousRange range = new PreviousRange(in.readLong(), offset, in.readLong(), new long[countsLength]);
+                                for (int c = 0; c < countsLength; c++)
+                                {
+                                    range.counts[c] = in.readLong();
+                                }
+                                ranges.put(fingerprint, range);
+                                offset += range.outputLength;
+                            }
+                        }
+                    }
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            catch (EOFException ex)
+            {
+                ranges.clear();
+            }
+        }
+        if (ranges.isEmpty() && previous.exists())
+        {
+            System.err.println("No usable manifest of the previous output, processing every TU");
+        }
+        return new IncrementalManifest(outFile, rules, ranges);
+    }
+
+    /**
+     * Cut [firstTU, lastTUEnd) into ranges of whole TUs by content and fingerprint them.
+     * Workers fingerprint the TUs of parts of the input, reading them in blocks; only the cuts
+     * are decided here, in order, from the fingerprints of the TUs.
+     * @param threads number of workers
+     * @return boundaries, as TUSplitter.split gives them: range i is [bounds[i], bounds[i+1])
+     * @throws XMLStreamException
+     * @throws IOException
+     */
+    long[] split(TUSplitter splitter, long firstTU, long lastTUEnd, int threads) throws XMLStreamException, IOException
+    {
+        return split(splitter, firstTU, lastTUEnd, threads, SCAN_SIZE);
+    }
+
+    /**
+     * @param partSize input a worker fingerprints the TUs of at a time; the ranges do not depend on it
+     */
+    long[] split(TUSplitter splitter, long firstTU, long lastTUEnd, int threads, long partSize) throws XMLStreamException, IOException
+    {
+        List<Long> bounds = new ArrayList<Long>();
+        List<Long> rangeFingerprints = new ArrayList<Long>();
+        bounds.add(firstTU);
+        long rangeStart = firstTU;
+        long range = FingerprintSet.SEED;
+
+        long[] parts = splitter.split(firstTU, lastTUEnd, partSize);
+        List<Future<long[]>> scans = new ArrayList<Future<long[]>>();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try
+        {
+            for (int part = 0; part + 1 < parts.length; part++)
+            {
+                //a few parts ahead of the one the cuts need next
+                while (scans.size() + 1 < parts.length && scans.size() < part + 2 * threads)
+                {
+                    int next = scans.size();
+                    scans.add(workers.submit(new TUScan(splitter, parts[next], parts[next + 1])));
+                }
+                long[] tus = scans.get(part).get();
+                scans.set(part, null);
+
+                for (int i = 0; i < tus.length; i += 2)
+                {
+                    long tu = tus[i];
+                    long fingerprint = tus[i + 1];
+                    range = FingerprintSet.finish(range ^ fingerprint);
+                    if (tu == lastTUEnd || (fingerprint & ((1 << CUT_BITS) - 1)) == 0 || tu - rangeStart >= MAX_RANGE_SIZE)
+                    {
+                        bounds.add(tu);
+                        rangeFingerprints.add(range);
+                        rangeStart = tu;
+                        range = FingerprintSet.SEED;
+                    }
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            throw ParallelEngine.interrupted(ex);
+        }
+        catch (ExecutionException ex)
+        {
+            ParallelEngine.rethrow(ex.getCause());
+        }
+        finally
+        {
+            workers.shutdownNow();
+        }
+
+        long[] result = new long[bounds.size()];
+        fingerprints = new long[bounds.size() - 1];
+        inputLengths = new long[bounds.size() - 1];
+        for (int i = 0; i < result.length; i++)
+        {
+            result[i] = bounds.get(i);
+            if (i > 0)
+            {
+                fingerprints[i - 1] = rangeFingerprints.get(i - 1);
+                inputLengths[i - 1] = result[i] - result[i - 1];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param range index of a range of this run
+     * @return output of the same range in the previous output, null if it has to be processed
+     * @throws IOException if the previous output can not be read
+     */
+    String previousOutput(int range) throws IOException
+    {
+        PreviousRange found = previousRanges.get(fingerprints[range]);
+        if (found == null || found.inputLength != inputLengths[range] || found.outputLength > Integer.MAX_VALUE)
+        {
+            return null;
+        }
+        byte[] bytes = new byte[(int) found.outputLength];
+        RandomAccessFile in = new RandomAccessFile(previous, "r");
+        try
+        {
+            in.seek(found.offset);
+            in.readFully(bytes);
+        }
+        finally
+        {
+            in.close();
+        }
+        synchronized (this)
+        {
+            reused++;
+        }
+        return new String(bytes, CHARSET_UTF8);
+    }
+
+    /**
+     * The header is written and the ranges follow.
+     * @param out output writer, flushed to take the length of the header
+     */
+    void headerWritten(Writer out) throws IOException
+    {
+        out.flush();
+        headerLength = outFile.length();
+    }
+
+    /**
+     * @param range index of a range of this run that previousOutput gave the output of
+     * @return TU counters of the range, as saved with it
+     */
+    long[] previousCounts(int range)
+    {
+        return previousRanges.get(fingerprints[range]).counts;
+    }
+
+    /**
+     * Count the next range as written. Called by the thread writing the output, in range order.
+     * @param text output of the range
+     * @param rangeCounts TU counters of the range, see RunMetrics.counts
+     */
+    void written(String text, long[] rangeCounts)
+    {
+        outputLengths.add(utf8Length(text));
+        counts.add(rangeCounts);
+    }
+
+    private static long utf8Length(String text)
+    {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (c < 0x80)
+            {
+                length++;
+            }
+            else if (c < 0x800)
+            {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1)))
+            {
+                length += 4;
+                i++;
+            }
+            else
+            {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * The output is complete and closed: save the manifest of it and drop the previous output.
+     * A run that could not be cut into ranges leaves no manifest.
+     * @throws IOException
+     */
+    void finish() throws IOException
+    {
+        if (fingerprints == null || headerLength < 0 || outputLengths.size() != fingerprints.length)
+        {
+            file.delete();
+            previous.delete();
+            return;
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(rules);
+            out.writeLong(headerLength);
+            out.writeLong(outFile.length());
+            out.writeInt(fingerprints.length);
+            out.writeInt(fingerprints.length == 0 ? 0 : counts.get(0).length);
+            for (int i = 0; i < fingerprints.length; i++)
+            {
+                out.writeLong(fingerprints[i]);
+                out.writeLong(inputLengths[i]);
+                out.writeLong(outputLengths.get(i));
+                for (long count : counts.get(i))
+                {
+                    out.writeLong(count);
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+        {
+            throw new IOException("Can not save manifest " + file);
+        }
+        previous.delete();
+        System.err.println(String.format("Incremental: %d of %d ranges copied from the previous output", reused, fingerprints.length));
+    }
+
+    /**
+     * Worker: fingerprint every TU of a part of the input, from its start to the next TU start.
+     * The part starts at a TU start and ends at one, or at the last TU end.
+     */
+    private static final class TUScan implements Callable<long[]>
+    {
+        private final TUSplitter splitter;
+        private final long from;
+        private final long to;
+
+        TUScan(TUSplitter splitter, long from, long to)
+        {
+            this.splitter = splitter;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * @return for every TU, the offset just after it and its fingerprint
+         */
+        public long[] call() throws IOException
+        {
+            long[] tus = new long[64];
+            int count = 0;
+            InputStream in = splitter.open(from, to);
+            byte[] block = new byte[SCAN_BLOCK];
+            int filled = 0;
+            long blockStart = from;
+            long fingerprint = FingerprintSet.SEED;
+            boolean last = false;
+            while (true)
+            {
+                while (!last && filled < block.length)
+                {
+                    int read = in.read(block, filled, block.length - filled);
+                    last = read < 0;
+                    filled += last ? 0 : read;
+                }
+                //a TU start is told by the 3 bytes after the '<', so those wait for the next block
+                int scanned = last ? filled : filled - 3;
+                int i = 0;
+                for (; i < scanned; i++)
+                {
+                    byte b = block[i];
+                    if (b == '<' && TUSplitter.isTUStart(block, i, filled) && blockStart + i > from)
+                    {
+                        if (count == tus.length)
+                        {
+                            tus = Arrays.copyOf(tus, 2 * count);
+                        }
+                        tus[count++] = blockStart + i;
+                        tus[count++] = FingerprintSet.finish(fingerprint);
+                        fingerprint = FingerprintSet.SEED;
+                    }
+                    fingerprint = FingerprintSet.hash(fingerprint, b);
+                }
+                if (last)
+                {
+                    break;
+                }
+                System.arraycopy(block, i, block, 0, filled - i);
+                blockStart += i;
+                filled -= i;
+            }
+            if (count == tus.length)
+            {
+                tus = Arrays.copyOf(tus, count + 2);
+            }
+            tus[count++] = to;
+            tus[count++] = FingerprintSet.finish(fingerprint);
+            return Arrays.copyOf(tus, count);
+        }
+    }
+
+    /**
+     * A range of the previous output: input length, where its output is and its TU counters.
+     */
+    private static final class PreviousRange
+    {
+        final long inputLength;
+        final long offset;
+        final long outputLength;
+        final long[] counts;
+
+        PreviousRange(long inputLength, long offset, long outputLength, long[] counts)
+        {
+            this.inputLength = inputLength;
+            this.offset = offset;
+            this.outputLength = outputLength;
+            this.counts = counts;
+        }
+    }
+}
@@ -0,0 +1,947 @@
+package org.uncorpora.utils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.DTD;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.ProcessingInstruction;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Processor engine that rewrites TUs on several cores.
+ * A pool of workers rewrites and serialises chunks of TUs, and a writer thread appends the
+ * serialised chunks to the output in the original order. The queue between the calling thread
+ * and the writer holds the chunks in reading order and is bounded, so a slow chunk stalls the
+ * calling thread instead of letting finished chunks pile up in memory.
+ *
+ * The chunks come from one of:
+ * 1) run: the calling thread parses the document and cuts the events into chunks of TUs
+ * 2) runSplit: TUSplitter cuts the file bytes into ranges of TUs, and each worker parses its own range
+ *
+ * Header and footer are written by the calling thread through the main event writer, so that
+ * the writer keeps track of the open tmx and body elements. All the TUs are expected to sit
+ * in one body, so the chunks themselves are balanced.
+ *
+ * Produces the same output as the event engine in Processor, with two differences on bad input:
+ * run skips a TU past -maxTUMemory where the event engine may stream it, and a split range that
+ * does not parse is parsed again TU by TU, skipping the TUs that do not parse instead of failing.
+ */
+final class ParallelEngine
+{
+    private static final int TUS_PER_CHUNK = 256;
+    private static final long RANGE_SIZE = 4L << 20;
+
+    private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+
+    /** Put where the TUs were, when parsing header and footer together in split mode */
+    private static final String SPLIT_MARK = "uncorpora-split";
+    /** Element a range of TUs is wrapped in to be parsed on its own */
+    private static final String RANGE_ELEMENT = "uncorpora-range";
+
+    /** Marks the end of the chunks in the queue */
+    private static final Future<Piece> END = new FutureTask<Piece>(new Callable<Piece>()
+    {
+        public Piece call()
+        {
+            return null;
+        }
+    });
+
+    private final TURewriter rewriter;
+    private final int threads;
+    private final int queueDepth;
+
+    /** Set by the writer thread, so that the reader stops early */
+    private volatile boolean writeFailed;
+
+    /** Progress of a split run to save as ranges are written, null if not checkpointing */
+    private Checkpoint checkpoint;
+
+    /** Ranges of an incremental split run and the previous output to copy from, null if not incremental */
+    private IncrementalManifest incremental;
+
+    /** Chunks done with, to reuse their storage */
+    private final ConcurrentLinkedQueue<Chunk> freeChunks = new ConcurrentLinkedQueue<Chunk>();
+
+    private final StaxBackend backend;
+
+    /** Each worker thread parses and serialises with its own factories */
+    private final ThreadLocal<XMLInputFactory> inputFactories = new ThreadLocal<XMLInputFactory>()
+    {
+        @Override
+        protected XMLInputFactory initialValue()
+        {
+            return backend.newInputFactory();
+        }
+    };
+    private final ThreadLocal<XMLOutputFactory> outputFactories = new ThreadLocal<XMLOutputFactory>()
+    {
+        @Override
+        protected XMLOutputFactory initialValue()
+        {
+            return backend.newOutputFactory();
+        }
+    };
+
+    /**
+     * @param rewriter rules to apply; each chunk gets its own copy
+     * @param threads number of worker threads
+     * @param queueDepth number of chunks read ahead of the writer
+     * @param backend StAX implementation of the worker threads
+     */
+    ParallelEngine(TURewriter rewriter, int threads, int queueDepth, StaxBackend backend)
+    {
+        this.rewriter = rewriter;
+        this.backend = backend;
+        this.threads = threads;
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Process the whole document, parsing it on the calling thread.
+     * @param eventReader source of events
+     * @param eventWriter destination of the events, flushed but not closed
+     * @param out writer underneath eventWriter, for the serialised chunks
+     * @throws XMLStreamException
+     * @throws IOException
+     */
+    void run(XMLEventReader eventReader, XMLEventWriter eventWriter, Writer out) throws XMLStreamException, IOException
+    {
+        TUWindow buffer = new TUWindow();
+
+        //copy the head
+        boolean tuSeen = Processor.collectUntilTU(eventReader, buffer, false);
+        Processor.copyOutEvents(eventWriter, buffer);
+        closeStartTag(eventWriter);
+
+        RunMetrics metrics = rewriter.metrics();
+        OrderedOutput output = new OrderedOutput(out);
+        try
+        {
+            while (tuSeen && !writeFailed)
+            {
+                Chunk chunk = freeChunks.poll();
+                if (chunk == null)
+                {
+                    chunk = new Chunk();
+                }
+                long start = System.nanoTime();
+                tuSeen = readChunk(eventReader, chunk, buffer, rewriter.maxTUBytes());
+                metrics.addTime(RunMetrics.Stage.PARSE, System.nanoTime() - start);
+                metrics.tusRead(chunk.tuCount);
+                chunk.countOversized(metrics);
+                output.submit(new ChunkTask(chunk));
+            }
+        }
+        finally
+        {
+            output.close();
+        }
+        output.await();
+
+        copyFooter(eventReader, eventWriter, buffer);
+    }
+
+    /**
+     * Read up to TUS_PER_CHUNK TUs into the chunk, each followed by whatever is between it and the next TU.
+     * A TU holding more than maxTUBytes is left out and counted in the chunk as oversized.
+     * @param eventReader source of events, positioned just before a TU start
+     * @param chunk empty chunk to fill
+     * @param buffer empty window, gets the footer if the document ends
+     * @param maxTUBytes estimated memory one TU may hold
+     * @return true if another TU follows the chunk; false if the document ended, with the footer left in buffer
+     * @throws XMLStreamException
+     */
+    static boolean readChunk(XMLEventReader eventReader, Chunk chunk, TUWindow buffer, long maxTUBytes) throws XMLStreamException
+    {
+        boolean tuSeen = true;
+        while (tuSeen && chunk.tuCount < TUS_PER_CHUNK)
+        {
+            int tuStart = chunk.events.size();
+            long limit = chunk.events.bytes() + maxTUBytes;
+            Processor.collectUntilTU(eventReader, chunk.events, true); //got TU Start
+            if (readTU(eventReader, chunk.events, limit))
+            {
+                chunk.addTU(tuStart, chunk.events.size());
+            }
+            else
+            {
+                Processor.reportSkipped(chunk.events.get(tuStart), "holds more than -maxTUMemory before it can be written");
+                chunk.events.truncate(tuStart);
+                chunk.oversized++;
+            }
+
+            tuSeen = Processor.collectUntilTU(eventReader, buffer, false); //collect whatever is between TUs
+            if (tuSeen)
+            {
+                chunk.addAll(buffer);
+                buffer.clear();
+            }
+            //else it is the footer, left in the buffer
+        }
+        return tuSeen;
+    }
+
+    /**
+     * Collect the rest of a TU, up to its end element.
+     * @param events window the TU start is in
+     * @param limit estimated memory of the window past which the TU is skipped to its end instead
+     * @return false if the TU was too large, with its events left in the window for the caller to drop
+     * @throws XMLStreamException if the stream ended inside the TU
+     */
+    private static boolean readTU(XMLEventReader eventReader, TUWindow events, long limit) throws XMLStreamException
+    {
+        boolean collecting = true;
+        while (eventReader.hasNext())
+        {
+            XMLEvent event = eventReader.nextEvent();
+            if (collecting)
+            {
+                events.add(event);
+                collecting = events.bytes() <= limit;
+            }
+            if (event.isEndElement() && TMXSymbols.element(event.asEndElement().getName()) == TMXSymbols.TU)
+            {
+                return collecting;
+            }
+        }
+        throw new XMLStreamException("Input ended inside a TU");
+    }
+
+    /**
+     * Process the whole file, letting the workers parse ranges of it. Header and footer are
+     * parsed together on the calling thread, with a processing instruction where the TUs were.
+     * Falls back to {@link #run} for files that can not be cut, e.g. with entities declared in the DTD
+     * that the ranges could not resolve on their own, or with TU tags inside comments in the header or footer.
+     * TU tags inside comments between the TUs are found by the worker of their range, and fail the run,
+     * as the ranges before it may have been written already.
+     * @param splitter input file
+     * @param inputFactory factory for the header and footer parser
+     * @param outputFactory factory for the header and footer writer
+     * @param out destination, flushed but not closed
+     * @param checkpoint progress to save as ranges are written, null if not checkpointing. When resuming,
+     * the header is left out and the ranges start at the checkpoint
+     * @param index index of the input to read only the TUs the rewriter may keep, null to read them all
+     * @param incremental manifest to cut the ranges by and copy unchanged ones from the previous output, null to process them all
+     * @throws XMLStreamException
+     * @throws IOException
+     */
+    void runSplit(TUSplitter splitter, XMLInputFactory inputFactory, XMLOutputFactory outputFactory, Writer out, Checkpoint checkpoint, TUIndex index,
+            IncrementalManifest incremental) throws XMLStreamException, IOException
+    {
+        SkippingWriter headerOut = new SkippingWriter(out, checkpoint != null && checkpoint.isResuming());
+        XMLEventWriter eventWriter = outputFactory.createXMLEventWriter(headerOut);
+
+        long firstTU = splitter.findTUStart(0, splitter.length());
+        long lastTUEnd = splitter.findLastTUEnd();
+        String rangeStart = null;
+        XMLEventReader eventReader = null;
+        TUWindow buffer = new TUWindow();
+
+        if (firstTU >= 0 && lastTUEnd > firstTU && splitter.findLastTUStart() < lastTUEnd
+                && splitter.findHiddenTUTag(0, firstTU) < 0 && splitter.findHiddenTUTag(lastTUEnd, splitter.length()) < 0)
+        {
+            InputStream headAndTail = new SequenceInputStream(
+                    new SequenceInputStream(splitter.open(0, firstTU), new ByteArrayInputStream(("<?" + SPLIT_MARK + "?>").getBytes(CHARSET_UTF8))),
+                    splitter.open(lastTUEnd, splitter.length()));
+            eventReader = inputFactory.createXMLEventReader(new BufferedReader(new InputStreamReader(headAndTail, CHARSET_UTF8)));
+            rangeStart = collectHeader(eventReader, buffer);
+        }
+
+        if (rangeStart == null)
+        {
+            if (headerOut.skipping)
+            {
+                throw new IOException("Can not resume: the input can not be cut at TU boundaries");
+            }
+            System.err.println("Can not cut the input at TU boundaries, parsing it in one piece");
+            buffer.clear();
+            run(inputFactory.createXMLEventReader(new BufferedReader(new InputStreamReader(splitter.open(0, splitter.length()), CHARSET_UTF8))),
+                    eventWriter, out);
+            return;
+        }
+
+        Processor.copyOutEvents(eventWriter, buffer);
+        closeStartTag(eventWriter);
+        headerOut.skipping = false; //a resumed output has the header already
+        if (incremental != null)
+        {
+            incremental.headerWritten(out);
+        }
+
+        long start = firstTU;
+        if (checkpoint != null && checkpoint.isResuming())
+        {
+            start = checkpoint.resumeOffset();
+            if (start != lastTUEnd && splitter.findTUStart(start, Math.min(splitter.length(), start + 4)) != start)
+            {
+                throw new IOException("Can not resume: checkpoint offset is not at a TU start: " + start);
+            }
+        }
+        this.checkpoint = checkpoint;
+        this.incremental = incremental;
+
+        long[] ranges;
+        if (index == null)
+        {
+            long[] bounds = incremental != null ? incremental.split(splitter, start, lastTUEnd, threads) : splitter.split(start, lastTUEnd, RANGE_SIZE);
+            ranges = new long[2 * (bounds.length - 1)];
+            for (int i = 0; i + 1 < bounds.length; i++)
+            {
+                ranges[2 * i] = bounds[i];
+                ranges[2 * i + 1] = bounds[i + 1];
+            }
+        }
+        else
+        {
+            ranges = index.select(rewriter, RANGE_SIZE);
+        }
+
+        OrderedOutput output = new OrderedOutput(out);
+        try
+        {
+            //the index leaves many small ranges, a task parses them together up to RANGE_SIZE;
+            //the ranges of an incremental run are taken one by one, as they are copied one by one
+            int first = 0;
+            long size = 0;
+            for (int i = 0; i < ranges.length && !writeFailed; i += 2)
+            {
+                size += ranges[i + 1] - ranges[i];
+                if (size >= RANGE_SIZE || i + 2 == ranges.length || incremental != null)
+                {
+                    if (incremental != null)
+                    {
+                        output.submit(new SpliceTask(i / 2, new RangeTask(splitter, new long[] {ranges[i], ranges[i + 1]}, rangeStart)));
+                    }
+                    else if (size > 0)
+                    {
+                        long[] pieces = new long[i + 2 - first];
+                        System.arraycopy(ranges, first, pieces, 0, pieces.length);
+                        output.submit(new RangeTask(splitter, pieces, rangeStart));
+                    }
+                    first = i + 2;
+                    size = 0;
+                }
+            }
+        }
+        finally
+        {
+            output.close();
+        }
+        output.await();
+
+        Processor.collectUntilTU(eventReader, buffer, false); //everything after the split mark
+        copyFooter(eventReader, eventWriter, buffer);
+    }
+
+    /**
+     * Collect the header events up to the split mark and check the ranges can be parsed on their own.
+     * @return start tag to wrap the ranges in, declaring the namespaces in scope at the first TU;
+     * null if the ranges can not be parsed on their own
+     */
+    private static String collectHeader(XMLEventReader eventReader, TUWindow header) throws XMLStreamException
+    {
+        List<StartElement> open = new ArrayList<StartElement>();
+        while (eventReader.hasNext())
+        {
+            XMLEvent event = eventReader.nextEvent();
+            if (event instanceof ProcessingInstruction && SPLIT_MARK.equals(((ProcessingInstruction) event).getTarget()))
+            {
+                return rangeStartTag(open);
+            }
+
+            if (event instanceof DTD)
+            {
+                List<?> entities = ((DTD) event).getEntities();
+                if (entities != null && !entities.isEmpty())
+                {
+                    return null;
+                }
+            }
+            else if (event instanceof StartElement)
+            {
+                open.add(event.asStartElement());
+            }
+            else if (event.isEndElement())
+            {
+                open.remove(open.size() - 1);
+            }
+            header.add(event);
+        }
+        return null;
+    }
+
+    private static String rangeStartTag(List<StartElement> open)
+    {
+        Map<String, String> inScope = new LinkedHashMap<String, String>();
+        for (StartElement element : open)
+        {
+            Iterator<?> namespaces = element.getNamespaces();
+            while (namespaces.hasNext())
+            {
+                Namespace namespace = (Namespace) namespaces.next();
+                inScope.put(namespace.getPrefix(), namespace.getNamespaceURI());
+            }
+        }
+
+        StringBuilder tag = new StringBuilder("<").append(RANGE_ELEMENT);
+        for (Map.Entry<String, String> namespace : inScope.entrySet())
+        {
+            if (namespace.getKey().length() == 0)
+            {
+                if (namespace.getValue().length() > 0)
+                {
+                    return null; //TUs in a namespace are not TUs to the rewriter, leave them alone
+                }
+                continue;
+            }
+            tag.append(" xmlns:").append(namespace.getKey()).append("=\"");
+            String uri = namespace.getValue();
+            for (int i = 0; i < uri.length(); i++)
+            {
+                char c = uri.charAt(i);
+                switch (c)
+                {
+                    case '&': tag.append("&amp;"); break;
+                    case '<': tag.append("&lt;"); break;
+                    case '"': tag.append("&quot;"); break;
+                    default: tag.append(c);
+                }
+            }
+            tag.append('"');
+        }
+        return tag.append('>').toString();
+    }
+
+    /**
+     * Close the start tag still open in the writer and flush it, before the chunks are written under it.
+     */
+    private static void closeStartTag(XMLEventWriter eventWriter) throws XMLStreamException
+    {
+        eventWriter.add(XMLEventFactory.newInstance().createCharacters(""));
+        eventWriter.flush();
+    }
+
+    /**
+     * Write out what follows the last TU: collected into the buffer, and what is left in the reader.
+     */
+    private static void copyFooter(XMLEventReader eventReader, XMLEventWriter eventWriter, TUWindow buffer) throws XMLStreamException
+    {
+        Processor.trimWhiteSpaces(buffer, 0);
+        Processor.copyOutEvents(eventWriter, buffer);
+        boolean tuSeen = Processor.collectUntilTU(eventReader, buffer, false);
+        assert !tuSeen; //if we see a TU now, something is very wrong
+        Processor.copyOutEvents(eventWriter, buffer);
+        eventWriter.flush();
+    }
+
+    /**
+     * Writer thread: append serialised chunks in queue order until END.
+     * After a failure keeps draining the queue, so that the reader does not block on it.
+     */
+    private void writeChunks(BlockingQueue<Future<Piece>> pending, Writer out) throws Exception
+    {
+        Exception failure = null;
+        Future<Piece> next;
+        while ((next = pending.take()) != END)
+        {
+            if (failure != null)
+            {
+                next.cancel(false);
+                continue;
+            }
+            try
+            {
+                Piece piece = next.get();
+                long start = System.nanoTime();
+                out.write(piece.text);
+                if (checkpoint != null && piece.inputEnd >= 0)
+                {
+                    checkpoint.written(out, piece.inputEnd, piece.tuCount);
+                }
+                if (incremental != null)
+                {
+                    incremental.written(piece.text, piece.counts);
+                }
+                rewriter.metrics().addTime(RunMetrics.Stage.WRITE, System.nanoTime() - start);
+            }
+            catch (ExecutionException ex)
+            {
+                Throwable cause = ex.getCause();
+                failure = cause instanceof Exception ? (Exception) cause : ex;
+                writeFailed = true;
+            }
+            catch (IOException ex)
+            {
+                failure = ex;
+                writeFailed = true;
+            }
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    static void rethrow(Throwable cause) throws XMLStreamException, IOException
+    {
+        if (cause instanceof XMLStreamException)
+        {
+            throw (XMLStreamException) cause;
+        }
+        if (cause instanceof IOException)
+        {
+            throw (IOException) cause;
+        }
+        if (cause instanceof RuntimeException)
+        {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error)
+        {
+            throw (Error) cause;
+        }
+        throw new IOException(String.valueOf(cause));
+    }
+
+    static InterruptedIOException interrupted(InterruptedException ex)
+    {
+        return (InterruptedIOException) new InterruptedIOException().initCause(ex);
+    }
+
+    /**
+     * Workers, writer thread and the bounded queue of pending chunks between them.
+     */
+    private final class OrderedOutput
+    {
+        private final BlockingQueue<Future<Piece>> pending = new ArrayBlockingQueue<Future<Piece>>(queueDepth);
+        private final ExecutorService workers = Executors.newFixedThreadPool(threads);
+        private final ExecutorService writerThread = Executors.newSingleThreadExecutor();
+        private final Future<Object> written;
+
+        OrderedOutput(final Writer out)
+        {
+            written = writerThread.submit(new Callable<Object>()
+            {
+                public Object call() throws Exception
+                {
+                    writeChunks(pending, out);
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * Queue the task for the workers, blocking while the queue is full.
+         */
+        void submit(Callable<Piece> task) throws InterruptedIOException
+        {
+            try
+            {
+                pending.put(workers.submit(task));
+            }
+            catch (InterruptedException ex)
+            {
+                throw interrupted(ex);
+            }
+        }
+
+        /**
+         * No more tasks. Has to be called even if submitting failed, to let the writer thread finish.
+         */
+        void close() throws InterruptedIOException
+        {
+            try
+            {
+                pending.put(END);
+            }
+            catch (InterruptedException ex)
+            {
+                throw interrupted(ex);
+            }
+            finally
+            {
+                workers.shutdown();
+                writerThread.shutdown();
+            }
+        }
+
+        /**
+         * Wait until everything is written, rethrowing the first failure of a worker or the writer.
+         */
+        void await() throws XMLStreamException, IOException
+        {
+            try
+            {
+                written.get();
+            }
+            catch (InterruptedException ex)
+            {
+                throw interrupted(ex);
+            }
+            catch (ExecutionException ex)
+            {
+                rethrow(ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * TUs read in one go, with whatever was between them. The events of the TU number i
+     * sit at [tuBounds[2*i], tuBounds[2*i+1]) in the window, followed by the events up to the next TU.
+     */
+    static final class Chunk
+    {
+        final TUWindow events = new TUWindow(TUS_PER_CHUNK * 64);
+        final int[] tuBounds = new int[2 * TUS_PER_CHUNK];
+        int tuCount;
+        /** TUs read but left out for their size */
+        int oversized;
+        /** Outputs of the fan out engine still to write the chunk */
+        final AtomicInteger readers = new AtomicInteger();
+
+        void addTU(int start, int end)
+        {
+            tuBounds[2 * tuCount] = start;
+            tuBounds[2 * tuCount + 1] = end;
+            tuCount++;
+        }
+
+        void addAll(TUWindow window)
+        {
+            for (int i = 0; i < window.size(); i++)
+            {
+                events.add(window.get(i));
+            }
+        }
+
+        /**
+         * Count the TUs left out for their size as read and skipped.
+         */
+        void countOversized(RunMetrics metrics)
+        {
+            metrics.tusRead(oversized);
+            for (int i = 0; i < oversized; i++)
+            {
+                metrics.dropped(RunMetrics.Drop.OVERSIZED, 0);
+            }
+        }
+
+        void clear()
+        {
+            events.clear();
+            tuCount = 0;
+            oversized = 0;
+        }
+    }
+
+    /**
+     * Worker: rewrite the TUs of the chunk, trim what is between them and serialise the result.
+     */
+    private final class ChunkTask implements Callable<Piece>
+    {
+        private final Chunk chunk;
+
+        ChunkTask(Chunk chunk)
+        {
+            this.chunk = chunk;
+        }
+
+        public Piece call() throws XMLStreamException
+        {
+            TURewriter chunkRewriter = rewriter.copy();
+            TUWindow events = chunk.events;
+            long start = System.nanoTime();
+            for (int i = 0; i < chunk.tuCount; i++)
+            {
+                int tuEnd = chunk.tuBounds[2 * i + 1];
+                chunkRewriter.rewrite(events, chunk.tuBounds[2 * i], tuEnd);
+                Processor.trimWhiteSpaces(events, tuEnd);
+            }
+            long rewritten = System.nanoTime();
+            rewriter.metrics().addTime(RunMetrics.Stage.REWRITE, rewritten - start);
+
+            StringWriter out = new StringWriter(4 * events.size());
+            XMLEventWriter eventWriter = outputFactories.get().createXMLEventWriter(out);
+            Processor.copyOutEvents(eventWriter, events);
+            eventWriter.flush();
+            rewriter.metrics().addTime(RunMetrics.Stage.WRITE, System.nanoTime() - rewritten);
+
+            chunk.clear();
+            freeChunks.add(chunk);
+            return new Piece(out.toString(), -1, 0, null);
+        }
+    }
+
+    /**
+     * Worker: parse ranges of TUs wrapped together in an element of their own, rewrite and serialise them.
+     * Counts the TUs in the run metrics once the ranges went through.
+     */
+    private final class RangeTask implements Callable<Piece>
+    {
+        private final TUSplitter splitter;
+        /** Boundaries of the ranges: range i is [pieces[2*i], pieces[2*i+1]) */
+        private final long[] pieces;
+        private final long end;
+        private final String rangeStart;
+
+        RangeTask(TUSplitter splitter, long[] pieces, String rangeStart)
+        {
+            this.splitter = splitter;
+            this.pieces = pieces;
+            this.end = pieces[pieces.length - 1];
+            this.rangeStart = rangeStart;
+        }
+
+        public Piece call() throws XMLStreamException, IOException
+        {
+            for (int i = 0; i < pieces.length; i += 2)
+            {
+                long hidden = splitter.findHiddenTUTag(pieces[i], pieces[i + 1]);
+                if (hidden >= 0)
+                {
+                    throw new IOException("Input has TU tags inside a comment, CDATA section or processing instruction at byte " + hidden
+                            + ", can not cut it at TU boundaries; run it without -split");
+                }
+            }
+            //counted apart, as a range that does not parse is parsed again TU by TU
+            long size = 0;
+            for (int i = 0; i < pieces.length; i += 2)
+            {
+                size += pieces[i + 1] - pieces[i];
+            }
+            RunMetrics counted = new RunMetrics();
+            StringWriter out = new StringWriter((int) Math.min(Integer.MAX_VALUE, 2 * size));
+            int kept;
+            try
+            {
+                kept = parse(pieces, counted, out);
+            }
+            catch (XMLStreamException ex)
+            {
+                counted = new RunMetrics();
+                out = new StringWriter((int) Math.min(Integer.MAX_VALUE, 2 * size));
+                kept = 0;
+                for (int i = 0; i < pieces.length; i += 2)
+                {
+                    kept += parseByTU(pieces[i], pieces[i + 1], counted, out);
+                }
+            }
+            rewriter.metrics().addAll(counted);
+            return new Piece(out.toString(), end, kept, counted.counts());
+        }
+
+        /**
+         * Parse every TU of the range, with what follows it, on its own, leaving out and reporting the ones that do not parse.
+         * @return number of TUs written
+         */
+        private int parseByTU(long from, long to, RunMetrics counted, StringWriter out)
+        {
+            int kept = 0;
+            for (long tu = from; tu >= 0 && tu < to; )
+            {
+                long next = splitter.findTUStart(tu + 1, to);
+                long tuEnd = next < 0 ? to : next;
+                RunMetrics tuCounted = new RunMetrics();
+                StringWriter tuOut = new StringWriter();
+                try
+                {
+                    kept += parse(new long[] {tu, tuEnd}, tuCounted, tuOut);
+                    counted.addAll(tuCounted);
+                    out.write(tuOut.toString());
+                }
+                catch (XMLStreamException ex)
+                {
+                    Processor.reportSkipped("at byte " + tu, "does not parse: " + ex.getMessage());
+                    counted.tusRead(1);
+                    counted.dropped(RunMetrics.Drop.MALFORMED, 0);
+                }
+                tu = next;
+            }
+            return kept;
+        }
+
+        /**
+         * Parse ranges of TUs wrapped together in the range element, rewrite and serialise them.
+         * @param ranges boundaries: range i is [ranges[2*i], ranges[2*i+1])
+         * @param counted metrics to count the TUs in
+         * @param out destination of the serialised TUs
+         * @return number of TUs written
+         */
+        private int parse(long[] ranges, RunMetrics counted, StringWriter out) throws XMLStreamException
+        {
+            List<InputStream> parts = new ArrayList<InputStream>(ranges.length / 2 + 2);
+            parts.add(new ByteArrayInputStream(rangeStart.getBytes(CHARSET_UTF8)));
+            for (int i = 0; i < ranges.length; i += 2)
+            {
+                parts.add(counted.counting(splitter.open(ranges[i], ranges[i + 1])));
+            }
+            parts.add(new ByteArrayInputStream(("</" + RANGE_ELEMENT + ">").getBytes(CHARSET_UTF8)));
+            InputStream range = new SequenceInputStream(Collections.enumeration(parts));
+            XMLStreamReader streamReader = inputFactories.get().createXMLStreamReader(new InputStreamReader(range, CHARSET_UTF8));
+            XMLEventReader eventReader = inputFactories.get().createXMLEventReader(streamReader);
+            eventReader.nextEvent(); //start of document
+            eventReader.nextEvent(); //range element
+
+            XMLEventWriter eventWriter = outputFactories.get().createXMLEventWriter(out);
+            TURewriter rangeRewriter = rewriter.copy(counted);
+            TUWindow buffer = new TUWindow();
+            int kept = 0;
+
+            boolean tuSeen = Processor.collectUntilTU(eventReader, buffer, false); //ranges start with a TU, nothing to collect
+            Processor.copyOutEvents(eventWriter, buffer);
+            while (tuSeen)
+            {
+                tuSeen = Processor.collectTU(eventReader, streamReader, buffer, rangeRewriter, eventWriter);
+                if (!tuSeen)
+                {
+                    throw new XMLStreamException("Input ended inside a TU");
+                }
+                kept += buffer.size() > 0 ? 1 : 0;
+                Processor.copyOutEvents(eventWriter, buffer);
+                rangeRewriter.clock().lap(RunMetrics.Stage.WRITE);
+
+                tuSeen = Processor.collectUntilTU(eventReader, buffer, false); //collect whatever is between TUs
+                Processor.trimWhiteSpaces(buffer, 0);
+                if (!tuSeen)
+                {
+                    //leave out the end of range element and the end of document
+                    buffer.remove(buffer.size() - 1);
+                    buffer.remove(buffer.size() - 2);
+                }
+                Processor.copyOutEvents(eventWriter, buffer);
+            }
+            rangeRewriter.clock().stop();
+            eventWriter.flush();
+            return kept;
+        }
+    }
+
+    /**
+     * Worker of an incremental run: copy the output of the range from the previous output when
+     * the range has not changed, and count its TUs as saved with it; otherwise process it.
+     */
+    private final class SpliceTask implements Callable<Piece>
+    {
+        private final int range;
+        private final RangeTask task;
+
+        SpliceTask(int range, RangeTask task)
+        {
+            this.range = range;
+            this.task = task;
+        }
+
+        public Piece call() throws XMLStreamException, IOException
+        {
+            String text = incremental.previousOutput(range);
+            if (text == null)
+            {
+                return task.call();
+            }
+            long[] counts = incremental.previousCounts(range);
+            rewriter.metrics().bytesRead(task.end - task.pieces[0]);
+            rewriter.metrics().addCounts(counts);
+            return new Piece(text, task.end, (int) counts[1], counts);
+        }
+    }
+
+    /**
+     * Serialised output of a chunk or range, with where the range ends in the input.
+     */
+    private static final class Piece
+    {
+        final String text;
+        /** Input offset the range ends at, -1 for a chunk */
+        final long inputEnd;
+        /** Number of TUs in the text */
+        final int tuCount;
+        /** TU counters of the range, see RunMetrics.counts; null for a chunk */
+        final long[] counts;
+
+        Piece(String text, long inputEnd, int tuCount, long[] counts)
+        {
+            this.text = text;
+            this.inputEnd = inputEnd;
+            this.tuCount = tuCount;
+            this.counts = counts;
+        }
+    }
+
+    /**
+     * Writer that drops what is written while skipping, for the header of a resumed output.
+     */
+    private static final class SkippingWriter extends Writer
+    {
+        private final Writer out;
+        boolean skipping;
+
+        SkippingWriter(Writer out, boolean skipping)
+        {
+            this.out = out;
+            this.skipping = skipping;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException
+        {
+            if (!skipping)
+            {
+                out.write(cbuf, off, len);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException
+        {
+            if (!skipping)
+            {
+                out.write(str, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.uncorpora.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip output that compresses blocks on all cores. Each block becomes a gzip member of its own;
+ * a gzip file is any sequence of members, so gunzip and GZIPInputStream read the result as one stream.
+ * The compressed members are written in block order by the writing thread, once they are ready,
+ * with a bounded number of blocks in flight.
+ */
+final class ParallelGzipOutputStream extends OutputStream
+{
+    private final OutputStream out;
+    private final ExecutorService compressors;
+    private final int maxPending;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+    private byte[] block;
+    private int count;
+
+    /**
+     * @param out destination of the compressed members, closed together with this stream
+     * @param blockSize uncompressed size of a member
+     * @param threads number of compressing threads
+     */
+    ParallelGzipOutputStream(OutputStream out, int blockSize, int threads)
+    {
+        this.out = out;
+        this.block = new byte[blockSize];
+        this.maxPending = 2 * threads;
+        this.compressors = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "gzip");
+                thread.setDaemon(true); //do not keep a failed run alive
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        if (count == block.length)
+        {
+            submitBlock();
+        }
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            if (count == block.length)
+            {
+                submitBlock();
+            }
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Compress what is buffered as a member of its own, and write out all the members.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        if (count > 0)
+        {
+            submitBlock();
+        }
+        while (!pending.isEmpty())
+        {
+            writeMember();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            compressors.shutdownNow();
+            out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException
+    {
+        final byte[] data = block;
+        final int length = count;
+        pending.add(compressors.submit(new Callable<byte[]>()
+        {
+            public byte[] call() throws IOException
+            {
+                ByteArrayOutputStream member = new ByteArrayOutputStream(length / 3 + 64);
+                GZIPOutputStream gzip = new GZIPOutputStream(member, 8192);
+                gzip.write(data, 0, length);
+                gzip.close();
+                return member.toByteArray();
+            }
+        }));
+        block = new byte[block.length];
+        count = 0;
+
+        while (pending.size() >= maxPending)
+        {
+            writeMember();
+        }
+    }
+
+    private void writeMember() throws IOException
+    {
+        try
+        {
+            out.write(pending.poll().get());
+        }
+        catch (InterruptedException ex)
+        {
+            throw (InterruptedIOException) new InterruptedIOException().initCause(ex);
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            throw cause instanceof IOException ? (IOException) cause : (IOException) new IOException("Compression failed").initCause(cause);
+        }
+    }
+}
@@ -1,29 +1,34 @@
 package org.uncorpora.utils;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.channels.Channels;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
 import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.xml.XMLConstants;
+import javax.management.ObjectName;
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.events.Attribute;
 import javax.xml.stream.events.Characters;
 import javax.xml.stream.events.EndElement;
@@ -46,31 +51,22 @@ import org.kohsuke.args4j.Option;
 public class Processor
 {
 
-    private static final QName QNAME_TU = new QName("tu");
-    private static final QName QNAME_TUV = new QName("tuv");
-    private static final QName QNAME_PROP = new QName("prop");
-    private static final QName QNAME_SUB = new QName("sub");
-
-    private static final QName QNAME_LANG = new QName(XMLConstants.XML_NS_URI, "lang");
-    private static final QName QNAME_TYPE = new QName("type");
-    private static final QName QNAME_HI = new QName("hi");
+    static final QName QNAME_TUID = new QName("tuid");
 
     /**
-     * Collect events into a list until the end of until start of TU element is met.
+     * Collect events into a window until the end of until start of TU element is met.
      * @param eventReader - source of events
-     * @param events - list to collect events into
+     * @param events - window to collect events into
      * @return Saw
      * @throws XMLStreamException
      */
-    private boolean collectUntilTU(final XMLEventReader eventReader, LinkedList<XMLEvent> events, boolean collectTU) throws XMLStreamException, XMLStreamException
+    static boolean collectUntilTU(final XMLEventReader eventReader, TUWindow events, boolean collectTU) throws XMLStreamException, XMLStreamException
     {
         while (eventReader.hasNext())
         {
             XMLEvent nextEvent = eventReader.peek();
-            boolean done = false;
-
-            if (  (nextEvent instanceof StartElement && QNAME_TU.equals(nextEvent.asStartElement().getName()))
-                ||(nextEvent instanceof EndElement && QNAME_TU.equals(nextEvent.asEndElement().getName())))
+            if (  (nextEvent instanceof StartElement && TMXSymbols.element(nextEvent.asStartElement().getName()) == TMXSymbols.TU)
+                ||(nextEvent instanceof EndElement && TMXSymbols.element(nextEvent.asEndElement().getName()) == TMXSymbols.TU))
             {
                 if (collectTU)
                 {
@@ -87,18 +83,280 @@ public class Processor
         return false;
     }
 
+    /**
+     * Read one TU, from its start element to its end element, passing each event through
+     * the rewriter as it arrives. Only the events the rewriter keeps are collected,
+     * and nothing at all if the whole TU is dropped.
+     * @param eventReader - source of events, positioned just before the TU start
+     * @param streamReader - cursor eventReader was created over, or null. Once the TU is dropped,
+     * the rest of it is skipped on the cursor without creating events
+     * @param events - window to collect the rewritten TU into
+     * @param rewriter - rules to apply
+     * @param overflow - where the TU goes out as it is read once it holds more than the rewriter's maxTUBytes,
+     * or null. A TU past the ceiling that can not go out yet is dropped as oversized
+     * @return false if the stream ended before the TU was closed
+     * @throws XMLStreamException
+     */
+    static boolean collectTU(final XMLEventReader eventReader, XMLStreamReader streamReader, TUWindow events, TURewriter rewriter, XMLEventWriter overflow) throws XMLStreamException
+    {
+        rewriter.startTU();
+        RunMetrics.Clock clock = rewriter.clock();
+        XMLEvent tuStart = null;
+        while (eventReader.hasNext())
+        {
+            XMLEvent nextEvent = eventReader.nextEvent();
+            if (tuStart == null)
+            {
+                tuStart = nextEvent;
+            }
+            clock.lap(RunMetrics.Stage.PARSE);
+            boolean tuEnd = nextEvent instanceof EndElement && TMXSymbols.element(nextEvent.asEndElement().getName()) == TMXSymbols.TU;
+            boolean keep = rewriter.accept(nextEvent);
+            clock.lap(RunMetrics.Stage.REWRITE);
+            if (keep)
+            {
+                events.add(nextEvent);
+            }
+            else if (rewriter.isDropped())
+            {
+                events.clear();
+                if (streamReader != null && !tuEnd)
+                {
+                    //nothing is peeked inside a TU, so the cursor sits at the event just read
+                    skipToEndOfTU(streamReader);
+                    clock.lap(RunMetrics.Stage.PARSE);
+                    tuEnd = true;
+                }
+            }
+
+            if (!tuEnd && !rewriter.isDropped() && events.bytes() > rewriter.maxTUBytes())
+            {
+                if (overflow != null && rewriter.canStream())
+                {
+                    rewriter.stream();
+                    copyOutEvents(overflow, events);
+                }
+                else
+                {
+                    reportSkipped(tuStart, "holds more than -maxTUMemory before it can be written");
+                    rewriter.dropOversized();
+                    events.clear();
+                    if (streamReader != null)
+                    {
+                        skipToEndOfTU(streamReader);
+                        tuEnd = true;
+                    }
+                }
+            }
+
+            if (tuEnd)
+            {
+                rewriter.endTU();
+                rewriter.metrics().tusRead(1);
+                if (rewriter.isDropped())
+                {
+                    events.clear();
+                }
+                return true;
+            }
+        }
+
+        //hit the end of the stream before the end of TU
+        return false;
+    }
+
+    /**
+     * Tell on stderr that a TU is left out of the output.
+     * @param tuStart start element of the TU
+     * @param reason why it is left out
+     */
+    static void reportSkipped(XMLEvent tuStart, String reason)
+    {
+        Attribute tuid = tuStart.asStartElement().getAttributeByName(QNAME_TUID);
+        reportSkipped(tuid != null ? "tuid=" + tuid.getValue() : "at line " + tuStart.getLocation().getLineNumber(), reason);
+    }
+
+    /**
+     * @param which TU, e.g. by its tuid
+     */
+    static void reportSkipped(String which, String reason)
+    {
+        System.err.println(String.format("Skipped TU %s: %s", which, reason));
+    }
+
+    private static void skipToEndOfTU(XMLStreamReader streamReader) throws XMLStreamException
+    {
+        while (streamReader.hasNext())
+        {
+            if (streamReader.next() == XMLStreamConstants.END_ELEMENT
+                    && TMXSymbols.element(streamReader.getNamespaceURI(), streamReader.getLocalName()) == TMXSymbols.TU)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Process inFile into outFile, or standard out, with the engine selected by the flags.
+     * Counts the run in the metrics, reported on stderr and through JMX while it lasts.
+     */
+    void run() throws XMLStreamException, UnsupportedEncodingException, FileNotFoundException, IOException
+    {
+        if (!CompressedIO.isCompressed(inFile))
+        {
+            metrics.setInputLength(inFile.length());
+        }
+        Timer progress = progressSeconds > 0 ? metrics.reportProgress(progressSeconds * 1000L) : null;
+        ObjectName mbeanName = metrics.register(inFile.getPath());
+        try
+        {
+            process();
+        }
+        finally
+        {
+            if (progress != null)
+            {
+                progress.cancel();
+            }
+            RunMetrics.unregister(mbeanName);
+        }
+
+        if (metricsFile != null)
+        {
+            String output = outFile != null ? outFile.getPath() : exportPrefix;
+            metrics.writeSummary(metricsFile, inFile.getPath(), output);
+        }
+    }
+
+    private void process() throws XMLStreamException, IOException
+    {
+        XMLInputFactory xmlInputFactory = xmlBackend.newInputFactory();
+        if (buildIndex)
+        {
+            int count = TUIndex.build(inFile, xmlInputFactory);
+            System.err.println(String.format("Indexed %d TUs into %s", count, TUIndex.indexFile(inFile)));
+            return;
+        }
+        if (fanOutSpecs != null)
+        {
+            runFanOut(xmlInputFactory);
+            return;
+        }
+        if (exportPrefix != null)
+        {
+            runExport(xmlInputFactory);
+            return;
+        }
+        if (feedFormat != null)
+        {
+            runFeed(xmlInputFactory);
+            return;
+        }
+
+        XMLOutputFactory xmlOutputFactory = xmlBackend.newOutputFactory();
+        if (checkpointSeconds >= 0)
+        {
+            //the checkpoint cuts a resumed output back before it is opened for appending
+            Checkpoint checkpoint = Checkpoint.start(inFile, outFile, rules(), resume, checkpointSeconds * 1000L);
+            Writer writer = new ChannelWriter(new FileOutputStream(outFile, resume).getChannel(), CHARSET_UTF8, bufferSize);
+            new ParallelEngine(rewriter, threads, queueDepth, xmlBackend).runSplit(new TUSplitter(inFile), xmlInputFactory, xmlOutputFactory, writer, checkpoint, null, null);
+            writer.close();
+            checkpoint.finish();
+            return;
+        }
+
+        //the previous output is moved aside before the new one is opened
+        IncrementalManifest manifest = incremental ? IncrementalManifest.start(outFile, rules()) : null;
+        Writer writer = new ChannelWriter(outFile == null ? Channels.newChannel(System.out) : CompressedIO.openOutput(outFile, bufferSize), CHARSET_UTF8, bufferSize);
+        if (split)
+        {
+            TUIndex index = useIndex ? TUIndex.open(inFile) : null;
+            new ParallelEngine(rewriter, threads, queueDepth, xmlBackend).runSplit(new TUSplitter(inFile), xmlInputFactory, xmlOutputFactory, writer, null, index, manifest);
+            writer.close();
+            if (manifest != null)
+            {
+                manifest.finish();
+            }
+            return;
+        }
+
+        BufferedReader fileReader = new BufferedReader(new InputStreamReader(metrics.counting(CompressedIO.openInput(inFile, bufferSize)), CHARSET_UTF8), bufferSize);
+        if (cursor)
+        {
+            new CursorEngine(rewriter).run(xmlInputFactory, fileReader, xmlOutputFactory, writer);
+        }
+        else if (threads > 1)
+        {
+            new ParallelEngine(rewriter, threads, queueDepth, xmlBackend).run(xmlInputFactory.createXMLEventReader(fileReader), xmlOutputFactory.createXMLEventWriter(writer), writer);
+        }
+        else
+        {
+            XMLStreamReader streamReader = xmlInputFactory.createXMLStreamReader(fileReader);
+            runEvents(xmlInputFactory.createXMLEventReader(streamReader), streamReader, xmlOutputFactory.createXMLEventWriter(writer));
+        }
+        writer.close();
+    }
+
+    /**
+     * @return the flags the output of a TU depends on, to tell whether a checkpoint or an
+     * incremental manifest still applies
+     */
+    String rules()
+    {
+        return String.format("langs=%s novote=%b plaintext=%b sessions=%s dropEmpty=%b maxTUMemory=%d xmlBackend=%s",
+                keptLangs, noVote, plaintext, sessions, dropEmpty, maxTUMemory, xmlBackend);
+    }
+
+    /**
+     * Fan-out: parse inFile once and write the output of every spec.
+     */
+    private void runFanOut(XMLInputFactory xmlInputFactory) throws XMLStreamException, IOException
+    {
+        FanOutEngine engine = new FanOutEngine(queueDepth, metrics, maxTUMemory << 20, xmlBackend);
+        for (Processor spec : fanOutSpecs)
+        {
+            engine.addOutput(spec.rewriter, new ChannelWriter(CompressedIO.openOutput(spec.outFile, spec.bufferSize), CHARSET_UTF8, spec.bufferSize));
+            metrics.addOutput(spec.outFile, spec.metrics);
+        }
+        BufferedReader fileReader = new BufferedReader(new InputStreamReader(metrics.counting(CompressedIO.openInput(inFile, bufferSize)), CHARSET_UTF8), bufferSize);
+        engine.run(xmlInputFactory.createXMLEventReader(fileReader));
+    }
 
-    private void run() throws XMLStreamException, UnsupportedEncodingException, FileNotFoundException, IOException
+    /**
+     * Plain text export: a line-aligned text file per kept language, no TMX output.
+     */
+    private void runExport(XMLInputFactory xmlInputFactory) throws XMLStreamException, IOException
     {
-        XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
-        BufferedReader fileReader = new BufferedReader(new InputStreamReader(new FileInputStream(inFile), CHARSET_UTF8), BUFFER_SIZE);
-        final XMLEventReader eventReader = xmlInputFactory.createXMLEventReader(fileReader);
+        String[] langs = keptLangs.toArray(new String[keptLangs.size()]);
+        Writer[] writers = new Writer[langs.length];
+        for (int i = 0; i < langs.length; i++)
+        {
+            File langFile = new File(exportPrefix + "." + langs[i].toLowerCase());
+            writers[i] = new ChannelWriter(CompressedIO.openOutput(langFile, bufferSize), CHARSET_UTF8, bufferSize);
+        }
+        BufferedReader fileReader = new BufferedReader(new InputStreamReader(metrics.counting(CompressedIO.openInput(inFile, bufferSize)), CHARSET_UTF8), bufferSize);
+        XMLStreamReader streamReader = xmlInputFactory.createXMLStreamReader(fileReader);
+        new TextExporter(rewriter, langs, writers).run(xmlInputFactory.createXMLEventReader(streamReader), streamReader);
+    }
 
-        XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outFile == null ? System.out : new FileOutputStream(outFile), CHARSET_UTF8), BUFFER_SIZE);
-        final XMLEventWriter eventWriter = xmlOutputFactory.createXMLEventWriter(writer);
+    /**
+     * Document feed: a flat search document per kept TU, to -output or standard out, no TMX output.
+     */
+    private void runFeed(XMLInputFactory xmlInputFactory) throws XMLStreamException, IOException
+    {
+        String[] langs = keptLangs.toArray(new String[keptLangs.size()]);
+        Writer writer = new ChannelWriter(outFile == null ? Channels.newChannel(System.out) : CompressedIO.openOutput(outFile, bufferSize), CHARSET_UTF8, bufferSize);
+        BufferedReader fileReader = new BufferedReader(new InputStreamReader(metrics.counting(CompressedIO.openInput(inFile, bufferSize)), CHARSET_UTF8), bufferSize);
+        XMLStreamReader streamReader = xmlInputFactory.createXMLStreamReader(fileReader);
+        new DocumentFeed(rewriter, langs, feedFormat, feedBatch, writer).run(xmlInputFactory.createXMLEventReader(streamReader), streamReader);
+    }
 
-        LinkedList<XMLEvent> buffer = new LinkedList<XMLEvent>();
+    /**
+     * Event engine: every piece of the document goes through as an XMLEvent.
+     */
+    private void runEvents(final XMLEventReader eventReader, XMLStreamReader streamReader, final XMLEventWriter eventWriter) throws XMLStreamException
+    {
+        TUWindow buffer = new TUWindow();
 
         //copy the head
         boolean tuSeen = collectUntilTU(eventReader, buffer, false);
@@ -107,13 +365,14 @@ public class Processor
 
         while (tuSeen)
         {
-            tuSeen = collectUntilTU(eventReader, buffer, true); //got TU Start
-            assert tuSeen; //has to be true, as we just checked we have seen it
-            tuSeen = collectUntilTU(eventReader, buffer, true); //to TU End
-            assert tuSeen; //will fail only if tu does not close or we have a bug in matching
+            tuSeen = collectTU(eventReader, streamReader, buffer, rewriter, eventWriter); //TU Start to TU End, rewritten on the way
+            if (!tuSeen)
+            {
+                throw new XMLStreamException("Input ended inside a TU");
+            }
 
-            rewriteTU(buffer);
             copyOutEvents(eventWriter, buffer); // copy out rewritten TU
+            rewriter.clock().lap(RunMetrics.Stage.WRITE);
 
             tuSeen = collectUntilTU(eventReader, buffer, false); //collect whatever is between TUs
             trimWhiteSpaces(buffer, 0);
@@ -123,12 +382,326 @@ public class Processor
         // just in case we haven't seen any TUs at all, do the final cleanup
         tuSeen = collectUntilTU(eventReader, buffer, false);
         assert !tuSeen; //if we see a TU now, something is very wrong
+        rewriter.clock().stop();
 
         eventWriter.flush();
-        writer.close();
     }
 
 
+    /**
+     * Parse and check the command line, then compile the rewrite rules.
+     * @param processor - processor to configure
+     * @param cmdLineParser - parser created over the processor
+     * @param args - command line
+     * @throws CmdLineException
+     */
+    private static void configure(Processor processor, CmdLineParser cmdLineParser, String[] args) throws CmdLineException
+    {
+        cmdLineParser.parseArgument(args);
+        if (processor.spoolDir != null)
+        {
+            if (processor.batchDir != null || !processor.inputs.isEmpty() || processor.outFile != null || processor.fanOut != null
+                    || processor.exportPrefix != null || processor.feedFormat != null || processor.metricsFile != null)
+            {
+                throw new CmdLineException("-spool takes its runs from the job files, no input files or -batch, -output, -fanout, -export, -feed, -metrics");
+            }
+        }
+        else if (processor.batchDir != null)
+        {
+            if (processor.outFile != null || processor.fanOut != null || processor.exportPrefix != null || processor.metricsFile != null)
+            {
+                throw new CmdLineException("-batch can not be used with -output, -fanout, -export or -metrics");
+            }
+            if (processor.inputs.isEmpty())
+            {
+                throw new CmdLineException("-batch needs input files, directories or patterns");
+            }
+        }
+        else if (processor.inputs.size() > 1)
+        {
+            throw new CmdLineException("Only one input file, unless with -batch");
+        }
+        else if (processor.inputs.size() == 1)
+        {
+            processor.inFile = processor.inputs.get(0);
+        }
+        check(processor);
+    }
+
+    /**
+     * Check the flags together, then compile the rewrite rules.
+     * @param processor - processor with its flags and files set
+     * @throws CmdLineException
+     */
+    private static void check(Processor processor) throws CmdLineException
+    {
+        if ((processor.buildIndex || processor.useIndex) && processor.inFile != null && CompressedIO.isCompressed(processor.inFile))
+        {
+            throw new CmdLineException("-buildIndex and -index need an uncompressed input file");
+        }
+        if (processor.incremental)
+        {
+            if (processor.useIndex || processor.checkpointSeconds >= 0 || processor.resume
+                    || processor.outFile == null || CompressedIO.isCompressed(processor.outFile))
+            {
+                throw new CmdLineException("-incremental needs an uncompressed -output file, and can not be used with -index, -checkpoint or -resume");
+            }
+            processor.split = true; //the output is spliced range by range
+        }
+        if (processor.useIndex)
+        {
+            if (processor.cursor || processor.checkpointSeconds >= 0 || processor.resume || processor.exportPrefix != null || processor.fanOut != null)
+            {
+                throw new CmdLineException("-index can not be used with -cursor, -checkpoint, -resume, -export or -fanout");
+            }
+            processor.split = true; //the index gives the ranges to parse
+        }
+        if (processor.cursor && processor.threads > 1)
+        {
+            throw new CmdLineException("-cursor and -threads can not be used together");
+        }
+        if (processor.cursor && processor.split)
+        {
+            throw new CmdLineException("-cursor and -split can not be used together");
+        }
+        if (processor.split && processor.inFile != null && CompressedIO.isCompressed(processor.inFile))
+        {
+            throw new CmdLineException("-split needs an uncompressed input file");
+        }
+        if (processor.resume && processor.checkpointSeconds < 0)
+        {
+            processor.checkpointSeconds = DEFAULT_CHECKPOINT_SECONDS;
+        }
+        if (processor.checkpointSeconds >= 0
+                && (!processor.split || processor.outFile == null || CompressedIO.isCompressed(processor.outFile)))
+        {
+            throw new CmdLineException("-checkpoint and -resume need -split and an uncompressed -output file");
+        }
+        if (processor.exportPrefix != null
+                && (processor.cursor || processor.split || processor.threads > 1 || processor.outFile != null || processor.fanOut != null))
+        {
+            throw new CmdLineException("-export can not be used with -cursor, -split, -threads, -output or -fanout");
+        }
+        if (processor.feedFormat != null
+                && (processor.cursor || processor.split || processor.threads > 1 || processor.exportPrefix != null || processor.fanOut != null))
+        {
+            throw new CmdLineException("-feed can not be used with -cursor, -split, -threads, -export or -fanout");
+        }
+        if (processor.dedup && (processor.split || processor.threads > 1))
+        {
+            //workers finish TUs out of order, so which copy of a repeated TU stays would change from run to run
+            throw new CmdLineException("-dedup keeps the first copy in document order, it can not be used with -split, -index or -threads");
+        }
+        if (processor.fanOut != null)
+        {
+            if (processor.cursor || processor.split || processor.threads > 1 || processor.outFile != null)
+            {
+                throw new CmdLineException("-fanout can not be used with -cursor, -split, -threads or -output");
+            }
+            processor.fanOutSpecs = readFanOutSpecs(processor.fanOut);
+        }
+
+        //To skip language, look for TUV/@xml:lang
+        //To skip vote, we need to hold TU until we see PROP/@type='vote' or first TUV
+        //To remove footnote, look for SUB/@type='fnote'
+        //To inline symbol, look for HI/@type='symbol' and then let only text through
+        //To extract specific session, hold TU until we see PROP/@type='session' and its text
+
+        processor.rewriter = new TURewriter(VALID_LANGS, processor.keptLangs, processor.noVote, processor.plaintext, processor.sessions, processor.dropEmpty,
+                processor.dedup ? new FingerprintSet(null) : null, processor.maxTUMemory << 20, processor.metrics);
+    }
+
+    /**
+     * Read the fan-out spec file: one output per line, given with the same flags as on the command line.
+     * Blank lines and lines starting with # are skipped.
+     * @param specFile - file to read
+     * @return processor configured for each output
+     * @throws CmdLineException if the file can not be read or a line is not a valid output spec
+     */
+    private static List<Processor> readFanOutSpecs(File specFile) throws CmdLineException
+    {
+        List<Processor> specs = new ArrayList<Processor>();
+        try
+        {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(specFile), CHARSET_UTF8));
+            try
+            {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null)
+                {
+                    lineNumber++;
+                    line = line.trim();
+                    if (line.length() == 0 || line.startsWith("#"))
+                    {
+                        continue;
+                    }
+
+                    Processor spec;
+                    try
+                    {
+                        spec = fromArgs(splitLine(line));
+                    } catch (CmdLineException e)
+                    {
+                        throw new CmdLineException(String.format("%s line %d: %s", specFile, lineNumber, e.getMessage()));
+                    }
+                    if (spec.outFile == null || spec.inFile != null || spec.fanOut != null
+                            || spec.cursor || spec.split || spec.threads > 1 || spec.buildIndex)
+                    {
+                        throw new CmdLineException(String.format("%s line %d: a spec takes -output and any of -langs, -novote, -plaintext, -sessions, -dropEmpty, -dedup, -bufferSize", specFile, lineNumber));
+                    }
+                    specs.add(spec);
+                }
+            } finally
+            {
+                reader.close();
+            }
+        } catch (IOException e)
+        {
+            throw new CmdLineException(String.format("Can not read %s: %s", specFile, e.getMessage()));
+        }
+
+        if (specs.isEmpty())
+        {
+            throw new CmdLineException("No outputs in " + specFile);
+        }
+        return specs;
+    }
+
+    /**
+     * Cut a line of a spec or job file into arguments at white space. An argument in double or
+     * single quotes may hold white space, e.g. a path; there are no escapes.
+     * @param line - line to cut
+     * @return the arguments, without their quotes
+     * @throws CmdLineException if a quote is not closed
+     */
+    static String[] splitLine(String line) throws CmdLineException
+    {
+        List<String> args = new ArrayList<String>();
+        StringBuilder arg = new StringBuilder();
+        boolean inArg = false;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+            if (quote != 0)
+            {
+                if (c == quote)
+                {
+                    quote = 0;
+                }
+                else
+                {
+                    arg.append(c);
+                }
+            }
+            else if (c == '"' || c == '\'')
+            {
+                quote = c;
+                inArg = true;
+            }
+            else if (Character.isWhitespace(c))
+            {
+                if (inArg)
+                {
+                    args.add(arg.toString());
+                    arg.setLength(0);
+                    inArg = false;
+                }
+            }
+            else
+            {
+                arg.append(c);
+                inArg = true;
+            }
+        }
+        if (quote != 0)
+        {
+            throw new CmdLineException("Quote " + quote + " is not closed");
+        }
+        if (inArg)
+        {
+            args.add(arg.toString());
+        }
+        return args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * @param args - command line, as for main
+     * @return processor ready to run
+     * @throws CmdLineException
+     */
+    static Processor fromArgs(String... args) throws CmdLineException
+    {
+        Processor processor = new Processor();
+        configure(processor, new CmdLineParser(processor), args);
+        return processor;
+    }
+
+    /**
+     * Processor of one file of a batch.
+     * @param args - command line of the batch
+     * @param in - input file
+     * @param out - output file
+     * @return processor ready to run
+     * @throws CmdLineException if the flags do not apply to this file
+     */
+    static Processor forInput(String[] args, File in, File out) throws CmdLineException
+    {
+        Processor processor = new Processor();
+        new CmdLineParser(processor).parseArgument(args);
+        processor.batchDir = null;
+        processor.inFile = in;
+        processor.outFile = out;
+        check(processor);
+        return processor;
+    }
+
+    /**
+     * Processor of one line of a spooled job.
+     * @param args - command line of the run
+     * @return processor ready to run
+     * @throws CmdLineException if the line is not a single run writing to files
+     */
+    static Processor forJob(String[] args) throws CmdLineException
+    {
+        Processor processor = fromArgs(args);
+        if (processor.batchDir != null || processor.spoolDir != null)
+        {
+            throw new CmdLineException("A job line is a single run, no -batch or -spool");
+        }
+        if (processor.inFile == null)
+        {
+            throw new CmdLineException("A job line needs an input file");
+        }
+        if (processor.outFile == null && processor.exportPrefix == null && processor.fanOut == null && !processor.buildIndex)
+        {
+            throw new CmdLineException("A job line needs -output, -export, -fanout or -buildIndex, there is no standard out");
+        }
+        return processor;
+    }
+
+    /**
+     * @return file the run writes, the index with -buildIndex
+     */
+    File output()
+    {
+        return buildIndex ? TUIndex.indexFile(inFile) : outFile;
+    }
+
+    RunMetrics metrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * @return rewrite rules compiled from the flags
+     */
+    TURewriter rewriter()
+    {
+        return rewriter;
+    }
+
     public static void main(String[] args)
     {
 
@@ -137,22 +710,36 @@ public class Processor
 
         try
         {
-            cmdLineParser.parseArgument(args);
+            configure(processor, cmdLineParser, args);
         } catch (CmdLineException e)
         {
             System.err.println(e.getMessage());
-            System.err.println("\nUsage: java -jar uncorpora.jar [options...] <inputFile>");
+            System.err.println("\nUsage: java -jar uncorpora.jar [options...] <inputFile>\n       java -jar uncorpora.jar [options...] -batch <outDir> <inputs...>\n       java -jar uncorpora.jar [-jobs <n>] -spool <dir>");
             cmdLineParser.printUsage(System.err);
             return;
         }
 
-        //To skip language, look for TUV/@xml:lang
-        //To skip vote, we need to hold TU until we see PROP/@type='vote' or first TUV
-        //To remove footnote, look for SUB/@type='fnote'
-        //To inline symbol, look for HI/@type='symbol' and then let only text through
-        //To extract specific session, hold TU until we see PROP/@type='session' and its text
+        if (processor.batchDir != null)
+        {
+            runBatch(processor, args);
+            return;
+        }
+        if (processor.spoolDir != null)
+        {
+            System.err.println(String.format("START: %s, running jobs from %s, %d at a time", new Date(), processor.spoolDir, processor.jobs));
+            try
+            {
+                new SpoolDaemon(processor.spoolDir, processor.jobs).run();
+            } catch (Exception ex)
+            {
+                Logger.getLogger(Processor.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            System.err.println("END  : " + (new Date()));
+            return;
+        }
 
-        System.out.println("START: " + (new Date()));
+        //stderr, so that the timestamps do not end up in results written to standard out
+        System.err.println("START: " + (new Date()));
         try
         {
             processor.run();
@@ -160,10 +747,33 @@ public class Processor
         {
             Logger.getLogger(Processor.class.getName()).log(Level.SEVERE, null, ex);
         }
-        System.out.println("END  : " + (new Date()));
+        System.err.println("END  : " + (new Date()));
+        System.err.println("STATS: " + processor.metrics.progress());
 
     }
 
+    /**
+     * Run every input of the command line with the same flags, see {@link BatchRunner}.
+     */
+    private static void runBatch(Processor processor, String[] args)
+    {
+        BatchRunner batch = new BatchRunner(args, processor.batchDir, processor.jobs);
+        try
+        {
+            Map<File, File> outputs = batch.plan(processor.inputs);
+            System.err.println(String.format("START: %s, %d files, %d at a time", new Date(), outputs.size(), processor.jobs));
+            int failed = batch.run(outputs);
+            System.err.println(String.format("END  : %s, %d files done, %d failed, see %s",
+                    new Date(), outputs.size() - failed, failed, new File(processor.batchDir, BatchRunner.MANIFEST)));
+        } catch (CmdLineException e)
+        {
+            System.err.println(e.getMessage());
+        } catch (Exception ex)
+        {
+            Logger.getLogger(Processor.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
     private TreeSet<String> splitEnum(String valueList, TreeSet<String> validChoices, String name)
             throws CmdLineException
     {
@@ -181,7 +791,7 @@ public class Processor
         }
         return result;
     }
-    private static final TreeSet<String> VALID_LANGS = new TreeSet<String>(Arrays.asList("EN", "FR", "ES", "AR", "ZH", "RU"));
+    static final TreeSet<String> VALID_LANGS = new TreeSet<String>(Arrays.asList("EN", "FR", "ES", "AR", "ZH", "RU"));
 
     /**
      * Flag: List of languages to keep
@@ -208,8 +818,24 @@ public class Processor
     @Option(name="-plaintext", usage="Remove footnotes, flatten symbols and leads, so each paragraph contains only text")
     private boolean plaintext = false;
 
-    private static final TreeSet VALID_SESSIONS = new TreeSet(Arrays.asList("55", "56", "57", "58", "59", "60", "61", "62"));
-    private TreeSet sessions;
+    /**
+     * Flag: drop TUs left without TUV
+     */
+    @Option(name = "-dropEmpty", usage = "Remove paragraphs left without any language, see -langs")
+    private boolean dropEmpty = false;
+
+    /**
+     * Flag: drop TUs repeating the kept text of an earlier TU
+     */
+    @Option(name = "-dedup", usage = "Remove paragraphs with the same kept languages and text as an earlier one.\nFingerprints are kept off the heap, in temporary files mapped in memory")
+    private boolean dedup = false;
+
+    private static final TreeSet<String> VALID_SESSIONS = new TreeSet<String>(Arrays.asList("55", "56", "57", "58", "59", "60", "61", "62"));
+
+    /**
+     * Flag: List of sessions to keep, null to keep them all
+     */
+    private TreeSet<String> sessions;
 
     @Option(name = "-sessions",
         metaVar = "<sessionList>",
@@ -222,184 +848,273 @@ public class Processor
 //    @Option(name = "-nofnote", usage = "Remove inlined footnotes")
 //    private boolean noFnote = false;
 
-    @Option(name = "-output", usage = "File to write results to.\nBy default results go to standard out")
-    private File outFile;
-
-    @Argument()
-    private File inFile;
-
+    /**
+     * Flag: use the cursor engine instead of the event engine
+     */
+    @Option(name = "-cursor", usage = "Use StAX cursor engine, which copies content without creating event objects.\nSame XML, less garbage; attributes keep their document order")
+    private boolean cursor = false;
 
-    private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
-    private static final int BUFFER_SIZE = 10 ^ 6;
+    /**
+     * Flag: number of threads rewriting TUs
+     */
+    @Option(name = "-threads", metaVar = "<n>", usage = "Number of threads rewriting TUs in parallel, output keeps the input order.\nDefault: 1, no extra threads")
+    private void setThreads(int threads) throws CmdLineException
+    {
+        if (threads < 1)
+        {
+            throw new CmdLineException("Number of threads has to be at least 1: " + threads);
+        }
+        this.threads = threads;
+    }
+    private int threads = 1;
 
-    private void copyOutEvents(XMLEventWriter eventWriter, LinkedList<XMLEvent> buffer) throws XMLStreamException
+    /**
+     * Flag: number of TU chunks read ahead of the output
+     */
+    @Option(name = "-queueDepth", metaVar = "<n>", usage = "With -threads, number of TU chunks read ahead of the output.\nDefault: 16")
+    private void setQueueDepth(int queueDepth) throws CmdLineException
     {
-        int size = buffer.size();
-        for (int i=0; i<size; i++)
+        if (queueDepth < 1)
         {
-            eventWriter.add(buffer.removeFirst());
+            throw new CmdLineException("Queue depth has to be at least 1: " + queueDepth);
         }
+        this.queueDepth = queueDepth;
     }
+    private int queueDepth = 16;
 
-    private void rewriteTU(LinkedList<XMLEvent> buffer)
+    /**
+     * Flag: size of the input and output buffers
+     */
+    @Option(name = "-bufferSize", metaVar = "<chars>", usage = "Size of the input and output buffers.\nDefault: 1048576")
+    private void setBufferSize(int bufferSize) throws CmdLineException
     {
-        if (this.noVote && foundVote(buffer))
+        if (bufferSize < 1024)
         {
-            buffer.clear();
+            throw new CmdLineException("Buffer size has to be at least 1024: " + bufferSize);
         }
+        this.bufferSize = bufferSize;
+    }
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
 
-        for (String lang: VALID_LANGS)
+    /**
+     * Flag: memory ceiling of one TU, in MB
+     */
+    @Option(name = "-maxTUMemory", metaVar = "<MB>", usage = "Estimated memory a TU may hold before it is written. A larger TU goes out as it is read\nwhen the rules allow, otherwise it is skipped and reported. Default: 64")
+    private void setMaxTUMemory(int maxTUMemory) throws CmdLineException
+    {
+        if (maxTUMemory < 1)
         {
-            if (!keptLangs.contains(lang))
-            {
-//                System.out.println("Removing lang: " + lang);
-                removeElements(buffer, QNAME_TUV, QNAME_LANG, lang, 1, buffer.size()-1);
-            }
+            throw new CmdLineException("TU memory has to be at least 1 MB: " + maxTUMemory);
         }
-        if (this.plaintext)
+        this.maxTUMemory = maxTUMemory;
+    }
+    private long maxTUMemory = 64;
+
+    /**
+     * Flag: cut the input file at TU boundaries and parse the pieces in parallel
+     */
+    @Option(name = "-split", usage = "Cut the input file into ranges of TUs by scanning its bytes, then parse and rewrite the ranges in parallel.\nA range that does not parse is parsed again TU by TU, skipping and reporting the broken TUs. See -threads")
+    private boolean split = false;
+
+    /**
+     * Flag: seconds between checkpoints of a split run
+     */
+    @Option(name = "-checkpoint", metaVar = "<seconds>", usage = "With -split, save progress next to the output as <output>.checkpoint,\nat most every <seconds>, 0 after every range. See -resume")
+    private void setCheckpoint(int checkpointSeconds) throws CmdLineException
+    {
+        if (checkpointSeconds < 0)
         {
-            removeElements(buffer, QNAME_SUB, null, null, 1, buffer.size()-1);
-            flattenElements(buffer, QNAME_HI, 1, buffer.size()-1);
+            throw new CmdLineException("Checkpoint interval can not be negative: " + checkpointSeconds);
         }
+        this.checkpointSeconds = checkpointSeconds;
     }
+    private int checkpointSeconds = -1;
+
+    /**
+     * Flag: continue a failed run from its checkpoint
+     */
+    @Option(name = "-resume", usage = "Continue a split run from <output>.checkpoint instead of starting over,\nthe input must not have changed. Keeps checkpointing, by default every 60 seconds")
+    private boolean resume = false;
+
+    /**
+     * Flag: write the TU index of the input
+     */
+    @Option(name = "-buildIndex", usage = "Index the TUs of the input into <inputFile>.tuidx and stop. See -index")
+    private boolean buildIndex = false;
 
-    private boolean foundVote(LinkedList<XMLEvent> buffer)
+    /**
+     * Flag: read only the TUs the index says may be kept
+     */
+    @Option(name = "-index", usage = "Read only the TUs that -novote, -sessions and -dropEmpty may keep, found in <inputFile>.tuidx.\nImplies -split")
+    private boolean useIndex = false;
+
+    /**
+     * Flag: copy the output of unchanged TU ranges from the previous run
+     */
+    @Option(name = "-incremental", usage = "Only rewrite the TUs that changed since the last run with this -output and these flags,\ncopying the rest from the previous output. Keeps fingerprints in <output>.incremental.\nImplies -split")
+    private boolean incremental = false;
+
+    /**
+     * Flag: file of output specs, to write several outputs in one pass
+     */
+    @Option(name = "-fanout", metaVar = "<specFile>", usage = "Parse the input once and write an output for each line of specFile.\nA line holds -output and any of -langs, -novote, -plaintext, -sessions, -dropEmpty, -dedup, -bufferSize.\nQuote a path with spaces in \"...\" or '...'")
+    private File fanOut;
+
+    /**
+     * Outputs read from the fan-out spec file
+     */
+    private List<Processor> fanOutSpecs;
+
+    /**
+     * Flag: export plain text per language instead of TMX
+     */
+    @Option(name = "-export", metaVar = "<prefix>", usage = "Write plain text instead of TMX: one file per kept language, <prefix>.<lang>,\none TU per line, lines aligned across the files")
+    private String exportPrefix;
+
+    /**
+     * Flag: StAX implementation to parse and write with
+     */
+    private StaxBackend xmlBackend = StaxBackend.DEFAULT;
+
+    @Option(name = "-xmlBackend", metaVar = "<name>", usage = "StAX implementation: default, woodstox or aalto when on the classpath,\nor <inputFactoryClass>[,<outputFactoryClass>]. Nothing is loaded from outside the input: no external DTD or entities.\nDefault: default, the implementation found by the standard StAX lookup")
+    private void setXmlBackend(String name) throws CmdLineException
+    {
+        xmlBackend = StaxBackend.forName(name);
+    }
+
+    /**
+     * Flag: format of the document feed, null for TMX output
+     */
+    private DocumentFeed.Format feedFormat;
+
+    @Option(name = "-feed", metaVar = "<json|solr>", usage = "Write a search document per kept TU instead of TMX, to -output or standard out:\nid, session, vote and text_<lang> per kept language, as JSON lines or Solr update XML")
+    private void setFeed(String format) throws CmdLineException
     {
-        for (int i=0; i<buffer.size(); i++)
+        try
         {
-            XMLEvent event = buffer.get(i);
-            if (!(event instanceof StartElement))
-            {
-                continue;
-            }
+            feedFormat = DocumentFeed.Format.valueOf(format.trim().toUpperCase());
+        } catch (IllegalArgumentException e)
+        {
+            throw new CmdLineException("Not a valid feed format: " + format);
+        }
+    }
 
-            StartElement startElement = event.asStartElement();
-            QName name = startElement.getName();
+    /**
+     * Flag: documents per feed batch
+     */
+    private int feedBatch = 1000;
 
-            if (QNAME_PROP.equals(name))
-            {
-                Attribute attribType = startElement.getAttributeByName(QNAME_TYPE);
-                if (attribType != null && "vote".equals(attribType.getValue())) //any value, as long as it is present
-                {
-                    return true;
-                }
-                //else keep looking
-            }
-            else if (QNAME_TUV.equals(name))
-            {
-                return false; // we hit start of TUV, no more properties to be found in this TU
-            }
+    @Option(name = "-feedBatch", metaVar = "<n>", usage = "With -feed, number of documents written between two flushes of the output.\nDefault: 1000")
+    private void setFeedBatch(int feedBatch) throws CmdLineException
+    {
+        if (feedBatch < 1)
+        {
+            throw new CmdLineException("Number of documents per batch has to be at least 1: " + feedBatch);
         }
-        throw new IllegalArgumentException("Looking for vote did not found either vote or start of TUV");
+        this.feedBatch = feedBatch;
     }
 
     /**
-     * Remove any elements with their content
-     * @param buffer list of events
-     * @param elementName name of the container element to remove with its content
-     * @param propName name of the property to check for presense of (NULL - do not care)
-     * @param propValue value of the property
-     * @param rangeStart index to start processing buffer from, inclusive
-     * @param rangeEnd index to finish processing buffer at, exclusive. Assumes no elements crossing the rangeEnd
+     * Flag: seconds between progress reports
      */
-    private void removeElements(LinkedList<XMLEvent> buffer, QName removeElementName, QName attribName, String attribValue, int rangeStart, int rangeEnd)
+    @Option(name = "-progress", metaVar = "<seconds>", usage = "Report progress to stderr every <seconds>, 0 for never.\nDefault: 30")
+    private void setProgress(int progressSeconds) throws CmdLineException
     {
-        for (int i=rangeStart; i<rangeEnd; i++)
+        if (progressSeconds < 0)
         {
-            XMLEvent event = buffer.get(i);
-            if (!(event instanceof StartElement))
-            {
-                continue;
-            }
+            throw new CmdLineException("Progress interval can not be negative: " + progressSeconds);
+        }
+        this.progressSeconds = progressSeconds;
+    }
+    private int progressSeconds = 30;
 
-            StartElement startElement = event.asStartElement();
-            if (!removeElementName.equals(startElement.getName()))
-            {
-                continue;
-            }
+    /**
+     * Flag: file to write the metrics of the run to
+     */
+    @Option(name = "-metrics", metaVar = "<file>", usage = "Write a JSON summary of the run to <file>: bytes and TUs read,\nTUs kept and dropped by reason, events per TU, time per stage")
+    private File metricsFile;
 
-            if (attribName != null) //if attribute is NULL, proceed to deletion
-            {
-// Show what attributes we have with full QNames
-//                System.out.println("Enumerating attributes for: " + startElement);
-//                Iterator atts = startElement.getAttributes();
-//                while (atts.hasNext())
-//                {
-//                    Attribute att = (Attribute)atts.next();
-//                    QName attName = att.getName();
-//                    System.out.printf("%s(%s)::%s=%s\n", attName.getPrefix(), attName.getNamespaceURI(), attName.getLocalPart(), att.getValue());
-//                }
-
-                Attribute attrib = startElement.getAttributeByName(attribName);
-                if (attrib != null && !attribValue.equals(attrib.getValue()))
-                {
-                    //we found the attribute, but it not the one we want to delete
-                    continue;
-                }
-            }
+    @Option(name = "-output", usage = "File to write results to, compressed if it ends with .gz, .xz or .zst.\nBy default results go to standard out")
+    private File outFile;
 
-            //we hit element start. Delete until we hit the end of the same element. Assume not-nested
-            buffer.remove(i);
-            int tokensRemoved = 1;
-            do
-            {
-                event = buffer.get(i);
-                tokensRemoved++;
-                buffer.remove(i);
-            } while (!((event instanceof EndElement) && removeElementName.equals(event.asEndElement().getName())));
+    /**
+     * Flag: directory of the outputs of a batch
+     */
+    @Option(name = "-batch", metaVar = "<outDir>", usage = "Process every input with the same flags in one JVM, writing <outDir>/<input name>.\nInputs are files, directories searched for .tmx files, or patterns with * and ?.\nEach file done is listed in <outDir>/manifest.jsonl. See -jobs")
+    private File batchDir;
+
+    /**
+     * Flag: directory to take jobs from, as a daemon
+     */
+    @Option(name = "-spool", metaVar = "<dir>", usage = "Stay up and run the jobs dropped into <dir>: a <name>.job file holds one command line per line,\nwith a path with spaces in \"...\" or '...'. Results go to <name>.log, the job becomes <name>.done or <name>.failed.\nA file named stop ends the daemon. See -jobs")
+    private File spoolDir;
 
-            rangeEnd -= tokensRemoved;
-            rangeEnd -= trimWhiteSpaces(buffer, i);
-            i--; //so that the next cycle starts again at the 'new' next position
+    /**
+     * Flag: number of batch files or spooled jobs processed at a time
+     */
+    private int jobs = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "-jobs", metaVar = "<n>", usage = "With -batch or -spool, number of files or jobs processed at a time.\nDefault: number of processors")
+    private void setJobs(int jobs) throws CmdLineException
+    {
+        if (jobs < 1)
+        {
+            throw new CmdLineException("Number of jobs has to be at least 1: " + jobs);
         }
+        this.jobs = jobs;
     }
 
+    /**
+     * Input files as given, one unless with -batch
+     */
+    @Argument(metaVar = "<inputFile>", multiValued = true)
+    private List<File> inputs = new ArrayList<File>();
+
+    /**
+     * Input file, decompressed on the fly if it ends with .gz, .xz or .zst
+     */
+    private File inFile;
+
+
+    private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    private static final int DEFAULT_CHECKPOINT_SECONDS = 60;
 
-     /**
-     * Remove given element's start/end elements, but leave content in place
-     * @param buffer list of events
-     * @param elementName name of the container element to remove
-     * @param rangeStart index to start processing buffer from, inclusive
-     * @param rangeEnd index to finish processing buffer at, exclusive. Assumes no elements crossing the rangeEnd
+    /**
+     * Rewrite rules compiled from the flags above
      */
-    private void flattenElements(LinkedList<XMLEvent> buffer, QName flattenElementName, int rangeStart, int rangeEnd)
+    private TURewriter rewriter;
+
+    /**
+     * Counters of the run, shared by all the copies of the rewriter
+     */
+    private final RunMetrics metrics = new RunMetrics();
+
+    static void copyOutEvents(XMLEventWriter eventWriter, TUWindow buffer) throws XMLStreamException
     {
-        int i=rangeStart;
-        while (i<rangeEnd)
+        int size = buffer.size();
+        for (int i=0; i<size; i++)
         {
-            XMLEvent event = buffer.get(i);
-            if (  (event instanceof StartElement && flattenElementName.equals(event.asStartElement().getName()))
-                ||(event instanceof EndElement && flattenElementName.equals(event.asEndElement().getName())))
+            if (!buffer.isRemoved(i))
             {
-                buffer.remove(i);
-                rangeEnd--;
-            }
-            else
-            {
-                i++;
+                eventWriter.add(buffer.get(i));
             }
         }
-
+        buffer.clear();
     }
 
-    private int trimWhiteSpaces(LinkedList<XMLEvent> buffer, int startIdx)
+    static int trimWhiteSpaces(TUWindow buffer, int startIdx)
     {
-        if (startIdx >= buffer.size())
-        {
-            return 0;
-        }
-
         int count = 0;
-        XMLEvent firstEvent = buffer.get(startIdx);
-        while ((firstEvent instanceof Characters) && firstEvent.asCharacters().isWhiteSpace())
+        for (int i=buffer.nextLive(startIdx); i<buffer.size(); i=buffer.nextLive(i+1))
         {
-            count++;
-            buffer.remove(startIdx);
-            if (startIdx == buffer.size()) // we got them all
+            XMLEvent event = buffer.get(i);
+            if (!((event instanceof Characters) && event.asCharacters().isWhiteSpace()))
             {
                 break;
             }
-            firstEvent = buffer.get(startIdx);
+            buffer.remove(i);
+            count++;
         }
         return count;
     }
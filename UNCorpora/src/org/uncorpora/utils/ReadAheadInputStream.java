@@ -0,0 +1,173 @@
+package org.uncorpora.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Input stream that reads its source on a thread of its own, a few blocks ahead of the reader.
+ * Put in front of a decompressing stream, it lets decompression and parsing run on two cores.
+ * Failures of the source come out of read(), in order, after the blocks read before them.
+ */
+final class ReadAheadInputStream extends InputStream
+{
+    private static final int BLOCKS_AHEAD = 4;
+
+    private final InputStream source;
+    private final BlockingQueue<Block> blocks = new ArrayBlockingQueue<Block>(BLOCKS_AHEAD);
+    private final Thread thread;
+
+    private Block block;
+    private int pos;
+
+    /**
+     * @param source stream to read ahead, closed together with this one
+     * @param blockSize size of the blocks handed over between the threads
+     */
+    ReadAheadInputStream(InputStream source, final int blockSize)
+    {
+        this.source = source;
+        thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                readAhead(blockSize);
+            }
+        }, "read-ahead");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void readAhead(int blockSize)
+    {
+        try
+        {
+            while (true)
+            {
+                Block next = readBlock(blockSize);
+                boolean last = next.length < blockSize;
+                blocks.put(next);
+                if (last)
+                {
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            //closed before the end of the source
+        }
+    }
+
+    /**
+     * @return next block of the source, short at its end or when reading it failed. Anything
+     * thrown goes to the reader, or it would wait for the block forever.
+     */
+    private Block readBlock(int blockSize)
+    {
+        Block next = new Block(new byte[0]);
+        try
+        {
+            next = new Block(new byte[blockSize]);
+            int count;
+            while (next.length < blockSize && (count = source.read(next.data, next.length, blockSize - next.length)) >= 0)
+            {
+                next.length += count;
+            }
+        }
+        catch (IOException ex)
+        {
+            next.failure = ex;
+        }
+        catch (RuntimeException ex)
+        {
+            next.failure = failure(ex);
+        }
+        catch (Error ex)
+        {
+            next.failure = failure(ex);
+        }
+        return next;
+    }
+
+    private static IOException failure(Throwable cause)
+    {
+        return (IOException) new IOException("Reading ahead failed: " + cause).initCause(cause);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (!nextBlock())
+        {
+            return -1;
+        }
+        return block.data[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (!nextBlock())
+        {
+            return -1;
+        }
+        int count = Math.min(len, block.length - pos);
+        System.arraycopy(block.data, pos, b, off, count);
+        pos += count;
+        return count;
+    }
+
+    /**
+     * @return false at the end of the source
+     */
+    private boolean nextBlock() throws IOException
+    {
+        while (block == null || pos == block.length)
+        {
+            if (block != null && (block.failure != null || block.length < block.data.length))
+            {
+                if (block.failure != null)
+                {
+                    throw block.failure;
+                }
+                return false;
+            }
+            try
+            {
+                block = blocks.take();
+                pos = 0;
+            }
+            catch (InterruptedException ex)
+            {
+                throw (InterruptedIOException) new InterruptedIOException().initCause(ex);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        thread.interrupt();
+        source.close();
+    }
+
+    private static final class Block
+    {
+        final byte[] data;
+        int length;
+        IOException failure;
+
+        Block(byte[] data)
+        {
+            this.data = data;
+        }
+    }
+}
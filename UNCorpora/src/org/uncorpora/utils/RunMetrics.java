@@ -0,0 +1,534 @@
+package org.uncorpora.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Counters of one run: bytes and TUs read, TUs kept and dropped by reason, events per TU
+ * and time per stage. Updated by all the threads of the engines, at most a few times per TU;
+ * events are counted by each rewriter and added once per TU.
+ *
+ * Stage times of the engines that parse, rewrite and write a TU on one thread are measured with
+ * a {@link Clock} on every SAMPLE_EVERY-th TU only and scaled up, so that the clock is not read
+ * around every event. Engines that pass chunks of TUs between threads time every chunk.
+ *
+ * Reported periodically to stderr, exposed as an MBean while the run lasts,
+ * and written out as a JSON summary at the end.
+ */
+final class RunMetrics implements RunMetricsMBean
+{
+    /** Pipeline stages, timed separately */
+    enum Stage
+    {
+        PARSE, REWRITE, WRITE
+    }
+
+    /** Reasons to drop a whole TU */
+    enum Drop
+    {
+        VOTE, SESSION, EMPTY, DUPLICATE,
+        /** Too large to hold until decided, see -maxTUMemory */
+        OVERSIZED,
+        /** Does not parse, skipped in split runs */
+        MALFORMED
+    }
+
+    /** One TU in this many has its stages timed, a power of two */
+    static final int SAMPLE_EVERY = 64;
+
+    private final long startMillis = System.currentTimeMillis();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong tusRead = new AtomicLong();
+    private final AtomicLong tusKept = new AtomicLong();
+    private final AtomicLong tusEmptied = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLongArray dropped = new AtomicLongArray(Drop.values().length);
+    private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+    private volatile long inputLength = -1;
+
+    /** Metrics of each output of a fan-out run, by output file */
+    private final Map<String, RunMetrics> outputs = Collections.synchronizedMap(new LinkedHashMap<String, RunMetrics>());
+
+    void setInputLength(long inputLength)
+    {
+        this.inputLength = inputLength;
+    }
+
+    /**
+     * Count input taken care of without parsing it, e.g. copied over from a previous output.
+     */
+    void bytesRead(long count)
+    {
+        bytesRead.addAndGet(count);
+    }
+
+    void tusRead(int count)
+    {
+        tusRead.addAndGet(count);
+    }
+
+    /**
+     * Count a TU that stays in the output.
+     * @param tuEvents number of events the rewriter looked at
+     * @param emptied true if all of its TUVs were removed
+     */
+    void kept(int tuEvents, boolean emptied)
+    {
+        tusKept.incrementAndGet();
+        events.addAndGet(tuEvents);
+        if (emptied)
+        {
+            tusEmptied.incrementAndGet();
+        }
+    }
+
+    /**
+     * Count a TU dropped as a whole.
+     * @param reason rule that dropped it
+     * @param tuEvents number of events the rewriter looked at before dropping it
+     */
+    void dropped(Drop reason, int tuEvents)
+    {
+        dropped.incrementAndGet(reason.ordinal());
+        events.addAndGet(tuEvents);
+    }
+
+    /**
+     * Add the counters of a part of the run, counted apart until it was known to go through.
+     */
+    void addAll(RunMetrics part)
+    {
+        bytesRead.addAndGet(part.bytesRead.get());
+        tusRead.addAndGet(part.tusRead.get());
+        tusKept.addAndGet(part.tusKept.get());
+        tusEmptied.addAndGet(part.tusEmptied.get());
+        events.addAndGet(part.events.get());
+        for (int i = 0; i < dropped.length(); i++)
+        {
+            dropped.addAndGet(i, part.dropped.get(i));
+        }
+        for (int i = 0; i < stageNanos.length(); i++)
+        {
+            stageNanos.addAndGet(i, part.stageNanos.get(i));
+        }
+    }
+
+    /**
+     * @return the TU counters, without bytes and times: TUs read, kept and emptied, events, then
+     * TUs dropped by reason. Saved with a range of output, to be added back with addCounts.
+     */
+    long[] counts()
+    {
+        long[] counts = new long[4 + dropped.length()];
+        counts[0] = tusRead.get();
+        counts[1] = tusKept.get();
+        counts[2] = tusEmptied.get();
+        counts[3] = events.get();
+        for (int i = 0; i < dropped.length(); i++)
+        {
+            counts[4 + i] = dropped.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Add the TU counters of output taken over without processing its TUs again.
+     * @param counts as given by counts()
+     */
+    void addCounts(long[] counts)
+    {
+        tusRead.addAndGet(counts[0]);
+        tusKept.addAndGet(counts[1]);
+        tusEmptied.addAndGet(counts[2]);
+        events.addAndGet(counts[3]);
+        for (int i = 0; i < dropped.length(); i++)
+        {
+            dropped.addAndGet(i, counts[4 + i]);
+        }
+    }
+
+    void addTime(Stage stage, long nanos)
+    {
+        stageNanos.addAndGet(stage.ordinal(), nanos);
+    }
+
+    /**
+     * Add the time a stage took on a sampled TU, standing for all the TUs not sampled.
+     */
+    private void addSampledTime(Stage stage, long nanos)
+    {
+        stageNanos.addAndGet(stage.ordinal(), nanos * SAMPLE_EVERY);
+    }
+
+    /**
+     * @param outFile output of a fan-out run
+     * @param output metrics of the rewriter writing it
+     */
+    void addOutput(File outFile, RunMetrics output)
+    {
+        outputs.put(outFile.getPath(), output);
+    }
+
+    /**
+     * @param in stream the parser reads from
+     * @return the same stream, counting the bytes read
+     */
+    InputStream counting(InputStream in)
+    {
+        return new FilterInputStream(in)
+        {
+            @Override
+            public int read() throws IOException
+            {
+                int b = super.read();
+                if (b >= 0)
+                {
+                    bytesRead.incrementAndGet();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                int n = super.read(b, off, len);
+                if (n > 0)
+                {
+                    bytesRead.addAndGet(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    public long getElapsedMillis()
+    {
+        return System.currentTimeMillis() - startMillis;
+    }
+
+    public long getBytesRead()
+    {
+        return bytesRead.get();
+    }
+
+    public long getInputLength()
+    {
+        return inputLength;
+    }
+
+    public long getTusRead()
+    {
+        return tusRead.get();
+    }
+
+    public long getTusKept()
+    {
+        return tusKept.get();
+    }
+
+    public long getTusDroppedVote()
+    {
+        return dropped.get(Drop.VOTE.ordinal());
+    }
+
+    public long getTusDroppedSession()
+    {
+        return dropped.get(Drop.SESSION.ordinal());
+    }
+
+    public long getTusDroppedEmpty()
+    {
+        return dropped.get(Drop.EMPTY.ordinal());
+    }
+
+    public long getTusDroppedDuplicate()
+    {
+        return dropped.get(Drop.DUPLICATE.ordinal());
+    }
+
+    public long getTusSkippedOversized()
+    {
+        return dropped.get(Drop.OVERSIZED.ordinal());
+    }
+
+    public long getTusSkippedMalformed()
+    {
+        return dropped.get(Drop.MALFORMED.ordinal());
+    }
+
+    public long getTusEmptied()
+    {
+        return tusEmptied.get();
+    }
+
+    public double getEventsPerTU()
+    {
+        long tus = tusKept.get();
+        for (int i = 0; i < dropped.length(); i++)
+        {
+            tus += dropped.get(i);
+        }
+        return tus == 0 ? 0 : (double) events.get() / tus;
+    }
+
+    public long getParseMillis()
+    {
+        return stageNanos.get(Stage.PARSE.ordinal()) / 1000000;
+    }
+
+    public long getRewriteMillis()
+    {
+        return stageNanos.get(Stage.REWRITE.ordinal()) / 1000000;
+    }
+
+    public long getWriteMillis()
+    {
+        return stageNanos.get(Stage.WRITE.ordinal()) / 1000000;
+    }
+
+    /**
+     * @return one line on how far the run got
+     */
+    String progress()
+    {
+        long elapsed = Math.max(1, getElapsedMillis());
+        long bytes = getBytesRead();
+        String done = inputLength > 0 ? String.format(Locale.ROOT, "%.1f%% ", 100.0 * bytes / inputLength) : "";
+        String kept = outputs.isEmpty() ? String.format(Locale.ROOT, ", %d kept", getTusKept()) : "";
+        if (getTusDroppedDuplicate() > 0)
+        {
+            kept += String.format(Locale.ROOT, ", %d duplicates dropped", getTusDroppedDuplicate());
+        }
+        if (getTusSkippedOversized() + getTusSkippedMalformed() > 0)
+        {
+            kept += String.format(Locale.ROOT, ", %d oversized and %d malformed skipped", getTusSkippedOversized(), getTusSkippedMalformed());
+        }
+        return String.format(Locale.ROOT, "%s%.1f MB read, %d TUs read%s, %.1f MB/s, %d TUs/s",
+                done, bytes / 1e6, getTusRead(), kept, bytes / 1e3 / elapsed, getTusRead() * 1000 / elapsed);
+    }
+
+    /**
+     * Print progress to stderr every period until the timer is cancelled.
+     * @param periodMillis time between two lines
+     * @return timer to cancel at the end of the run
+     */
+    Timer reportProgress(long periodMillis)
+    {
+        Timer timer = new Timer("progress", true);
+        timer.schedule(new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                System.err.println("PROGRESS: " + progress());
+            }
+        }, periodMillis, periodMillis);
+        return timer;
+    }
+
+    /**
+     * Expose the counters through the platform MBean server.
+     * @param input name of the input, to tell concurrent runs apart
+     * @return name registered under, null if the registration failed
+     */
+    ObjectName register(String input)
+    {
+        try
+        {
+            ObjectName name = new ObjectName("org.uncorpora:type=RunMetrics,input=" + ObjectName.quote(input));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, RunMetricsMBean.class), name);
+            return name;
+        }
+        catch (JMException ex)
+        {
+            System.err.println("Metrics not available through JMX: " + ex);
+            return null;
+        }
+    }
+
+    static void unregister(ObjectName name)
+    {
+        if (name == null)
+        {
+            return;
+        }
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(name);
+        }
+        catch (JMException ex)
+        {
+            //gone already
+        }
+    }
+
+    /**
+     * Write the final counters as a JSON object.
+     * @param file destination, replaced
+     * @param input input file of the run
+     * @param output output of the run, or null
+     * @throws IOException
+     */
+    void writeSummary(File file, String input, String output) throws IOException
+    {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\n");
+        field(json, "  ", "input", input).append(",\n");
+        if (output != null)
+        {
+            field(json, "  ", "output", output).append(",\n");
+        }
+        json.append("  \"elapsedMillis\": ").append(getElapsedMillis()).append(",\n");
+        json.append("  \"bytesRead\": ").append(getBytesRead()).append(",\n");
+        json.append("  \"tusRead\": ").append(getTusRead()).append(",\n");
+        if (outputs.isEmpty())
+        {
+            counters(json, "  ");
+        }
+        else
+        {
+            //every output keeps and drops TUs by its own rules, the reading is shared
+            json.append("  \"stageMillis\": {\"parse\": ").append(getParseMillis()).append("},\n");
+            json.append("  \"outputs\": [");
+            String separator = "\n";
+            for (Map.Entry<String, RunMetrics> entry : outputs.entrySet())
+            {
+                json.append(separator).append("    {\n");
+                field(json, "      ", "output", entry.getKey()).append(",\n");
+                entry.getValue().counters(json, "      ");
+                json.append("\n    }");
+                separator = ",\n";
+            }
+            json.append("\n  ]");
+        }
+        json.append("\n}\n");
+
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try
+        {
+            out.write(json.toString());
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Append the rewrite counters and stage times, without a trailing separator.
+     */
+    private void counters(StringBuilder json, String indent)
+    {
+        json.append(indent).append("\"tusKept\": ").append(getTusKept()).append(",\n");
+        json.append(indent).append("\"tusDropped\": {\"vote\": ").append(getTusDroppedVote())
+                .append(", \"session\": ").append(getTusDroppedSession())
+                .append(", \"empty\": ").append(getTusDroppedEmpty())
+                .append(", \"duplicate\": ").append(getTusDroppedDuplicate()).append("},\n");
+        json.append(indent).append("\"tusSkipped\": {\"oversized\": ").append(getTusSkippedOversized())
+                .append(", \"malformed\": ").append(getTusSkippedMalformed()).append("},\n");
+        json.append(indent).append("\"tusEmptied\": ").append(getTusEmptied()).append(",\n");
+        json.append(indent).append("\"eventsPerTU\": ").append(String.format(Locale.ROOT, "%.2f", getEventsPerTU())).append(",\n");
+        json.append(indent).append("\"stageMillis\": {\"parse\": ").append(getParseMillis())
+                .append(", \"rewrite\": ").append(getRewriteMillis())
+                .append(", \"write\": ").append(getWriteMillis()).append('}');
+    }
+
+    /**
+     * Stage timer of one thread, running on sampled TUs only. A lap charges the time since the
+     * previous lap to a stage; on TUs that are not sampled a lap does nothing.
+     */
+    static final class Clock
+    {
+        private final RunMetrics metrics;
+        private final long[] nanos = new long[Stage.values().length];
+        private boolean running;
+        private long last;
+
+        Clock(RunMetrics metrics)
+        {
+            this.metrics = metrics;
+        }
+
+        /**
+         * Add up the previous TU, and start timing the next one if it is sampled.
+         */
+        void start(boolean sampled)
+        {
+            stop();
+            running = sampled;
+            if (running)
+            {
+                last = System.nanoTime();
+            }
+        }
+
+        /**
+         * Add up the last TU, if it is sampled. To call at the end of a run, or of a range.
+         */
+        void stop()
+        {
+            if (running)
+            {
+                for (Stage stage : Stage.values())
+                {
+                    metrics.addSampledTime(stage, nanos[stage.ordinal()]);
+                    nanos[stage.ordinal()] = 0;
+                }
+                running = false;
+            }
+        }
+
+        void lap(Stage stage)
+        {
+            if (running)
+            {
+                long now = System.nanoTime();
+                nanos[stage.ordinal()] += now - last;
+                last = now;
+            }
+        }
+    }
+
+    static StringBuilder field(StringBuilder json, String indent, String name, String value)
+    {
+        json.append(indent).append('"').append(name).append("\": \"");
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+                case '"': json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                default:
+                    if (c < 0x20)
+                    {
+                        json.append(String.format("\\u%04x", (int) c));
+                    }
+                    else
+                    {
+                        json.append(c);
+                    }
+            }
+        }
+        return json.append('"');
+    }
+}
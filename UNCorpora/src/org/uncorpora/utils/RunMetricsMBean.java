@@ -0,0 +1,47 @@
+package org.uncorpora.utils;
+
+/**
+ * Counters of a running Processor, as seen through JMX under org.uncorpora:type=RunMetrics.
+ * Stage times are summed over all the threads, so on several cores they can exceed the elapsed time.
+ */
+public interface RunMetricsMBean
+{
+    long getElapsedMillis();
+
+    /** Bytes of XML handed to the parser, after decompression */
+    long getBytesRead();
+
+    /** Input size, -1 if not known in advance, e.g. for compressed input */
+    long getInputLength();
+
+    long getTusRead();
+
+    long getTusKept();
+
+    long getTusDroppedVote();
+
+    long getTusDroppedSession();
+
+    /** TUs left without TUV and dropped for it, with -dropEmpty */
+    long getTusDroppedEmpty();
+
+    /** TUs with the same kept text as an earlier TU, with -dedup */
+    long getTusDroppedDuplicate();
+
+    /** TUs too large to hold in memory until decided, see -maxTUMemory */
+    long getTusSkippedOversized();
+
+    /** TUs that did not parse, skipped in split runs */
+    long getTusSkippedMalformed();
+
+    /** TUs kept with all their TUVs removed by -langs */
+    long getTusEmptied();
+
+    double getEventsPerTU();
+
+    long getParseMillis();
+
+    long getRewriteMillis();
+
+    long getWriteMillis();
+}
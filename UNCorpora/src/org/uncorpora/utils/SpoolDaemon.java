@@ -0,0 +1,198 @@
+package org.uncorpora.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.kohsuke.args4j.CmdLineException;
+
+/**
+ * Daemon mode: one long-lived JVM runs the jobs dropped into a spool directory, so that many
+ * small runs pay for JVM start-up, class loading and JIT warm-up once.
+ *
+ * A job is a file named <name>.job holding one command line per line, as given to the
+ * processor; blank lines and lines starting with # are skipped. An argument with spaces, e.g. a
+ * path, goes in double or single quotes. Every line must write to a file, there is no standard
+ * out. Relative paths are taken from the working directory of the daemon.
+ * Write a job under another name and rename it to .job once complete.
+ *
+ * The daemon claims a job by renaming it to <name>.job.running, so several daemons can share a
+ * directory, runs its lines in order and leaves the result of each in <name>.log. The job then
+ * becomes <name>.done, or <name>.failed if a line failed. Up to -jobs jobs run at a time.
+ * A file named stop in the directory makes the daemon finish the running jobs and exit.
+ */
+final class SpoolDaemon
+{
+    static final String JOB = ".job";
+    static final String RUNNING = ".job.running";
+    static final String STOP = "stop";
+    /** Time between two looks at the directory */
+    private static final long POLL_MILLIS = 200;
+
+    private final File spoolDir;
+    private final int jobs;
+
+    /**
+     * @param spoolDir directory to take the jobs from
+     * @param jobs number of jobs run at a time
+     */
+    SpoolDaemon(File spoolDir, int jobs)
+    {
+        this.spoolDir = spoolDir;
+        this.jobs = jobs;
+    }
+
+    /**
+     * Run jobs until the stop file shows up.
+     * @throws IOException if the directory can not be read
+     * @throws InterruptedException
+     */
+    void run() throws IOException, InterruptedException
+    {
+        if (!spoolDir.isDirectory())
+        {
+            throw new IOException("Not a directory: " + spoolDir);
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(jobs);
+        final Semaphore free = new Semaphore(jobs);
+        File stop = new File(spoolDir, STOP);
+        try
+        {
+            while (!stop.exists())
+            {
+                String[] names = spoolDir.list();
+                if (names == null)
+                {
+                    throw new IOException("Can not read " + spoolDir);
+                }
+                Arrays.sort(names); //oldest first, for names that sort by time
+                for (String name : names)
+                {
+                    if (!name.endsWith(JOB) || !free.tryAcquire())
+                    {
+                        continue;
+                    }
+                    final File running = new File(spoolDir, name.substring(0, name.length() - JOB.length()) + RUNNING);
+                    if (!new File(spoolDir, name).renameTo(running))
+                    {
+                        free.release(); //taken by another daemon
+                        continue;
+                    }
+                    workers.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                runJob(running);
+                            }
+                            finally
+                            {
+                                free.release();
+                            }
+                        }
+                    });
+                }
+                Thread.sleep(POLL_MILLIS);
+            }
+        }
+        finally
+        {
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        if (!stop.delete())
+        {
+            System.err.println("Can not delete " + stop);
+        }
+    }
+
+    /**
+     * Run the lines of a claimed job and leave its log and outcome.
+     */
+    private void runJob(File running)
+    {
+        String name = running.getName().substring(0, running.getName().length() - RUNNING.length());
+        System.err.println("START: " + new Date() + " " + name);
+        boolean failed = false;
+        try
+        {
+            Writer log = new OutputStreamWriter(new FileOutputStream(new File(spoolDir, name + ".log")), "UTF-8");
+            try
+            {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(running), "UTF-8"));
+                try
+                {
+                    String line;
+                    while ((line = reader.readLine()) != null)
+                    {
+                        line = line.trim();
+                        if (line.length() == 0 || line.startsWith("#"))
+                        {
+                            continue;
+                        }
+                        String result = runLine(line);
+                        failed |= result.startsWith("FAIL");
+                        log.write(line + "\n" + result + "\n");
+                        log.flush();
+                    }
+                }
+                finally
+                {
+                    reader.close();
+                }
+            }
+            finally
+            {
+                log.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            System.err.println(String.format("Can not run job %s: %s", name, ex));
+            failed = true;
+        }
+
+        File outcome = new File(spoolDir, name + (failed ? ".failed" : ".done"));
+        if (!running.renameTo(outcome))
+        {
+            System.err.println(String.format("Can not rename %s to %s", running, outcome));
+        }
+        System.err.println((failed ? "FAIL : " : "DONE : ") + new Date() + " " + name);
+    }
+
+    /**
+     * @return DONE and the statistics of the run, or FAIL and what went wrong
+     */
+    private static String runLine(String line)
+    {
+        Processor processor;
+        try
+        {
+            processor = Processor.forJob(Processor.splitLine(line));
+        }
+        catch (CmdLineException ex)
+        {
+            return "FAIL : " + ex.getMessage();
+        }
+        try
+        {
+            processor.run();
+            return "DONE : " + processor.metrics().progress();
+        }
+        catch (Exception ex)
+        {
+            return "FAIL : " + ex;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.uncorpora.utils;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationTargetException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLResolver;
+import org.kohsuke.args4j.CmdLineException;
+
+/**
+ * StAX implementation to parse and write with, chosen by name: the one found by the standard
+ * lookup, Woodstox or Aalto when on the classpath, or any factory classes. Whatever the
+ * implementation, its factories are set up for TMX: nothing is loaded from outside the document,
+ * neither the DTD nor external entities, no validation, text not coalesced. An internal DTD
+ * subset is still read, for the entities it may declare. Namespaces stay on, as xml:lang is
+ * matched by namespace.
+ */
+final class StaxBackend
+{
+    static final StaxBackend DEFAULT = new StaxBackend("default", null, null);
+
+    /** JDK parser: do not read the external DTD */
+    private static final String JDK_IGNORE_EXTERNAL_DTD = "http://java.sun.com/xml/stream/properties/ignore-external-dtd";
+    /** Woodstox: skip parsing an event's content until it is asked for */
+    private static final String WSTX_LAZY_PARSING = "com.ctc.wstx.lazyParsing";
+    /** Woodstox: do not check that the written elements nest */
+    private static final String WSTX_VALIDATE_STRUCTURE = "com.ctc.wstx.outputValidateStructure";
+
+    /** Resolves every external DTD and entity to nothing */
+    private static final XMLResolver NOTHING_EXTERNAL = new XMLResolver()
+    {
+        public Object resolveEntity(String publicID, String systemID, String baseURI, String namespace)
+        {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+    };
+
+    private final String name;
+    /** Factory classes, null for the standard lookup */
+    private final String inputClass;
+    private final String outputClass;
+
+    private StaxBackend(String name, String inputClass, String outputClass)
+    {
+        this.name = name;
+        this.inputClass = inputClass;
+        this.outputClass = outputClass;
+    }
+
+    /**
+     * @param name default, woodstox, aalto, or the input factory class and optionally the
+     * output factory class, separated by a comma
+     * @return backend, checked to load
+     * @throws CmdLineException if the name is not known or the factories are not on the classpath
+     */
+    static StaxBackend forName(String name) throws CmdLineException
+    {
+        StaxBackend backend;
+        if (name.equalsIgnoreCase("default"))
+        {
+            return DEFAULT;
+        }
+        else if (name.equalsIgnoreCase("woodstox"))
+        {
+            backend = new StaxBackend(name, "com.ctc.wstx.stax.WstxInputFactory", "com.ctc.wstx.stax.WstxOutputFactory");
+        }
+        else if (name.equalsIgnoreCase("aalto"))
+        {
+            backend = new StaxBackend(name, "com.fasterxml.aalto.stax.InputFactoryImpl", "com.fasterxml.aalto.stax.OutputFactoryImpl");
+        }
+        else if (name.indexOf('.') > 0)
+        {
+            String[] classes = name.split(",", 2);
+            backend = new StaxBackend(name, classes[0].trim(), classes.length > 1 ? classes[1].trim() : null);
+        }
+        else
+        {
+            throw new CmdLineException("Not a valid XML backend: " + name);
+        }
+
+        try
+        {
+            backend.newInputFactory();
+            backend.newOutputFactory();
+        }
+        catch (IllegalStateException ex)
+        {
+            throw new CmdLineException(ex.getMessage());
+        }
+        return backend;
+    }
+
+    /**
+     * @return new parser factory, set up for TMX
+     * @throws IllegalStateException if the factory can not be created
+     */
+    XMLInputFactory newInputFactory()
+    {
+        XMLInputFactory factory = inputClass == null ? XMLInputFactory.newInstance() : create(inputClass, XMLInputFactory.class);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setXMLResolver(NOTHING_EXTERNAL);
+        if (factory.isPropertySupported(JDK_IGNORE_EXTERNAL_DTD))
+        {
+            factory.setProperty(JDK_IGNORE_EXTERNAL_DTD, Boolean.TRUE);
+        }
+        factory.setProperty(XMLInputFactory.IS_VALIDATING, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        if (factory.isPropertySupported(WSTX_LAZY_PARSING))
+        {
+            factory.setProperty(WSTX_LAZY_PARSING, Boolean.TRUE);
+        }
+        return factory;
+    }
+
+    /**
+     * @return new writer factory, set up for TMX
+     * @throws IllegalStateException if the factory can not be created
+     */
+    XMLOutputFactory newOutputFactory()
+    {
+        XMLOutputFactory factory = outputClass == null ? XMLOutputFactory.newInstance() : create(outputClass, XMLOutputFactory.class);
+        factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.FALSE);
+        if (factory.isPropertySupported(WSTX_VALIDATE_STRUCTURE))
+        {
+            factory.setProperty(WSTX_VALIDATE_STRUCTURE, Boolean.FALSE);
+        }
+        return factory;
+    }
+
+    private <T> T create(String className, Class<T> type)
+    {
+        Class<?> factoryClass;
+        try
+        {
+            factoryClass = Class.forName(className);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            throw new IllegalStateException(String.format("XML backend %s is not on the classpath: %s", name, className));
+        }
+        if (!type.isAssignableFrom(factoryClass))
+        {
+            throw new IllegalStateException(String.format("%s of XML backend %s is not an %s", className, name, type.getSimpleName()));
+        }
+
+        try
+        {
+            return type.cast(factoryClass.getDeclaredConstructor().newInstance());
+        }
+        catch (NoSuchMethodException ex)
+        {
+            throw new IllegalStateException(String.format("%s of XML backend %s has no constructor without arguments", className, name));
+        }
+        catch (InstantiationException ex)
+        {
+            throw new IllegalStateException(String.format("%s of XML backend %s is abstract", className, name));
+        }
+        catch (IllegalAccessException ex)
+        {
+            throw new IllegalStateException(String.format("Can not access the constructor of %s of XML backend %s", className, name));
+        }
+        catch (InvocationTargetException ex)
+        {
+            throw new IllegalStateException(String.format("Can not create %s of XML backend %s: %s", className, name, ex.getCause()), ex.getCause());
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
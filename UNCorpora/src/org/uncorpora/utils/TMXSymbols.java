@@ -0,0 +1,147 @@
+package org.uncorpora.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.namespace.QName;
+
+/**
+ * Int codes for the small fixed vocabulary of TMX: the element names the rewrite rules look at,
+ * and the valid languages as bits of a mask. A name is mapped once per parsed event, by its length
+ * and characters, so the rules switch on ints and test language bits instead of comparing strings.
+ * Only elements without namespace have a code, as the rules leave the others alone.
+ */
+final class TMXSymbols
+{
+    /** Any element without a code of its own, or in a namespace */
+    static final int OTHER = 0;
+    static final int TU = 1;
+    static final int TUV = 2;
+    static final int PROP = 3;
+    static final int SEG = 4;
+    static final int SUB = 5;
+    static final int HI = 6;
+
+    /** Language bits: one per valid language, in the order of Processor.VALID_LANGS */
+    private static final List<String> LANGS = new ArrayList<String>(Processor.VALID_LANGS);
+    /** Language that is not a valid one */
+    static final int LANG_OTHER = 1 << 6;
+    /** No language */
+    static final int LANG_NONE = 1 << 7;
+    /** Bits of all the valid languages */
+    static final int LANG_VALID = (1 << LANGS.size()) - 1;
+
+    /** Bit of each two letter code, indexed by the letters, upper case */
+    private static final int[] LANG_BITS = new int[26 * 26];
+
+    static
+    {
+        for (int i = 0; i < LANGS.size(); i++)
+        {
+            String lang = LANGS.get(i);
+            LANG_BITS[(lang.charAt(0) - 'A') * 26 + lang.charAt(1) - 'A'] = 1 << i;
+        }
+    }
+
+    private TMXSymbols()
+    {
+    }
+
+    /**
+     * @return code of the element, OTHER if it has none or is in a namespace
+     */
+    static int element(String namespaceURI, String localName)
+    {
+        if (namespaceURI != null && namespaceURI.length() > 0)
+        {
+            return OTHER;
+        }
+        switch (localName.length())
+        {
+            case 2:
+                if (localName.charAt(0) == 't' && localName.charAt(1) == 'u')
+                {
+                    return TU;
+                }
+                if (localName.charAt(0) == 'h' && localName.charAt(1) == 'i')
+                {
+                    return HI;
+                }
+                return OTHER;
+            case 3:
+                char c0 = localName.charAt(0);
+                char c1 = localName.charAt(1);
+                char c2 = localName.charAt(2);
+                if (c0 == 't' && c1 == 'u' && c2 == 'v')
+                {
+                    return TUV;
+                }
+                if (c0 == 's' && c1 == 'e' && c2 == 'g')
+                {
+                    return SEG;
+                }
+                if (c0 == 's' && c1 == 'u' && c2 == 'b')
+                {
+                    return SUB;
+                }
+                return OTHER;
+            case 4:
+                return localName.charAt(0) == 'p' && localName.charAt(1) == 'r' && localName.charAt(2) == 'o' && localName.charAt(3) == 'p'
+                        ? PROP : OTHER;
+            default:
+                return OTHER;
+        }
+    }
+
+    static int element(QName name)
+    {
+        return element(name.getNamespaceURI(), name.getLocalPart());
+    }
+
+    /**
+     * @return bit of the language, LANG_OTHER if it is not a valid one, LANG_NONE if null.
+     * Valid languages match in upper case only, as in VALID_LANGS.
+     */
+    static int langBit(String lang)
+    {
+        if (lang == null)
+        {
+            return LANG_NONE;
+        }
+        if (lang.length() != 2)
+        {
+            return LANG_OTHER;
+        }
+        int c0 = letter(lang.charAt(0));
+        int c1 = letter(lang.charAt(1));
+        int bit = c0 < 0 || c1 < 0 ? 0 : LANG_BITS[c0 * 26 + c1];
+        return bit == 0 ? LANG_OTHER : bit;
+    }
+
+    /**
+     * Find the column of a TUV's language, matching it the way the rewrite rules do, so that
+     * text goes to a language's column exactly when the rules count the TUV as that language.
+     * @param lang xml:lang of the TUV, may be null
+     * @param langBits bits of the languages of the columns
+     * @return index into langBits, -1 if the language has no column
+     */
+    static int langIndex(String lang, int[] langBits)
+    {
+        int bit = langBit(lang);
+        for (int l = 0; l < langBits.length; l++)
+        {
+            if (langBits[l] == bit)
+            {
+                return l;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return 0 to 25 for an upper case letter, -1 otherwise
+     */
+    private static int letter(char c)
+    {
+        return c >= 'A' && c <= 'Z' ? c - 'A' : -1;
+    }
+}
@@ -0,0 +1,374 @@
+package org.uncorpora.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Binary sidecar index of a TMX file, &lt;input&gt;.tuidx: for every TU its byte offset and length,
+ * its session, whether it votes and which languages it has, as the rewrite rules see them.
+ * With the index, an extract only reads and parses the TUs the rules may keep.
+ *
+ * Layout, big endian: a header of magic, version, input length, input modification time and
+ * number of TUs, then one fixed size record per TU in document order:
+ * offset (long), length (int), session (short), flags (byte), languages (byte, TMXSymbols language bits).
+ *
+ * Read through a memory mapping, so opening the index costs nothing until records are looked at.
+ */
+final class TUIndex
+{
+    private static final int MAGIC = 0x54554958; //TUIX
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 16;
+    /** Bytes checked for hidden TU tags at once while indexing */
+    private static final long CHECK_SIZE = 1 << 20;
+
+    /** Session of a TU without session property */
+    static final short NO_SESSION = -1;
+    /** Session of a TU whose session property is not a plain number */
+    static final short OTHER_SESSION = -2;
+
+    /** PROP/@type='vote' before the first TUV */
+    static final int FLAG_VOTE = 1;
+    /** Something other than white space between the TU and the next one, e.g. a comment, that stays in the output */
+    static final int FLAG_TRAILER = 2;
+
+    private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer records;
+    private final int count;
+
+    private TUIndex(ByteBuffer records, int count)
+    {
+        this.records = records;
+        this.count = count;
+    }
+
+    /**
+     * @return index file of the input
+     */
+    static File indexFile(File input)
+    {
+        return new File(input.getPath() + ".tuidx");
+    }
+
+    /**
+     * Map the index of the input.
+     * @throws IOException if there is no index, or it was built for another version of the input
+     */
+    static TUIndex open(File input) throws IOException
+    {
+        File file = indexFile(input);
+        if (!file.exists())
+        {
+            throw new IOException("No index, build it with -buildIndex: " + file);
+        }
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                throw new IOException("Index too large: " + file);
+            }
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION)
+            {
+                throw new IOException("Not an index of this version: " + file);
+            }
+            if (mapped.getLong(8) != input.length() || mapped.getLong(16) != input.lastModified())
+            {
+                throw new IOException("Input has changed since the index was built, rebuild it with -buildIndex: " + file);
+            }
+            long count = mapped.getLong(24);
+            if (HEADER_SIZE + count * RECORD_SIZE != mapped.capacity())
+            {
+                throw new IOException("Index is truncated: " + file);
+            }
+            mapped.position(HEADER_SIZE);
+            return new TUIndex(mapped.slice(), (int) count);
+        }
+        finally
+        {
+            in.close(); //the mapping stays valid
+        }
+    }
+
+    int size()
+    {
+        return count;
+    }
+
+    long offset(int tu)
+    {
+        return records.getLong(tu * RECORD_SIZE);
+    }
+
+    int length(int tu)
+    {
+        return records.getInt(tu * RECORD_SIZE + 8);
+    }
+
+    short session(int tu)
+    {
+        return records.getShort(tu * RECORD_SIZE + 12);
+    }
+
+    int flags(int tu)
+    {
+        return records.get(tu * RECORD_SIZE + 14) & 0xFF;
+    }
+
+    int langs(int tu)
+    {
+        return records.get(tu * RECORD_SIZE + 15) & 0xFF;
+    }
+
+    /**
+     * Ranges of the TUs the rewriter may keep, with consecutive TUs merged up to rangeSize bytes.
+     * A TU followed by more than white space is read even if it is dropped, as what follows it stays.
+     * @param rewriter rules of the run
+     * @param rangeSize size above which a range is not extended any more
+     * @return boundaries: range i is [ranges[2*i], ranges[2*i+1]), each starting at a TU start and ending
+     * at the next TU start, or at the end of the last TU
+     */
+    long[] select(TURewriter rewriter, long rangeSize)
+    {
+        long[] ranges = new long[16];
+        int n = 0;
+        int previous = -2;
+        for (int tu = 0; tu < count; tu++)
+        {
+            if ((flags(tu) & FLAG_TRAILER) == 0 && !rewriter.mayKeep(session(tu), flags(tu), langs(tu)))
+            {
+                continue;
+            }
+            long start = offset(tu);
+            long end = tu + 1 < count ? offset(tu + 1) : start + length(tu);
+            if (previous == tu - 1 && end - ranges[n - 2] <= rangeSize)
+            {
+                ranges[n - 1] = end;
+            }
+            else
+            {
+                if (n == ranges.length)
+                {
+                    long[] grown = new long[2 * n];
+                    System.arraycopy(ranges, 0, grown, 0, n);
+                    ranges = grown;
+                }
+                ranges[n++] = start;
+                ranges[n++] = end;
+            }
+            previous = tu;
+        }
+        long[] result = new long[n];
+        System.arraycopy(ranges, 0, result, 0, n);
+        return result;
+    }
+
+    /**
+     * Build the index of the input: TU boundaries come from scanning the bytes, and what the rules
+     * look at from parsing the whole document once. The two have to agree TU by TU.
+     * @param input uncompressed TMX file
+     * @param inputFactory factory to create the parser with
+     * @return number of TUs indexed
+     * @throws IOException if the TUs found in the bytes and in the document do not match
+     */
+    static int build(File input, XMLInputFactory inputFactory) throws IOException, XMLStreamException
+    {
+        TUSplitter splitter = new TUSplitter(input);
+        File file = indexFile(input);
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        int count = 0;
+        try
+        {
+            out.write(new byte[HEADER_SIZE]); //filled in at the end
+            InputStreamReader in = new InputStreamReader(new FileInputStream(input), CHARSET_UTF8);
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            try
+            {
+                //a record is written once the next TU tells whether something stays between the two
+                long pending = -1;
+                long pendingEnd = 0;
+                int pendingFields = 0;
+                long checked = 0; //bytes checked for hidden TU tags, in blocks that end at TU starts
+                while (reader.hasNext())
+                {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && isTU(reader))
+                    {
+                        long start = splitter.findTUStart(pendingEnd, splitter.length());
+                        long end = start < 0 ? -1 : splitter.findTUEnd(start);
+                        if (end < 0 || end - start > Integer.MAX_VALUE)
+                        {
+                            throw new IOException("TU " + count + " not found in the bytes of the input, can not index it");
+                        }
+                        if (start - checked >= CHECK_SIZE)
+                        {
+                            checkHiddenTUTags(splitter, checked, start);
+                            checked = start;
+                        }
+                        if (pending >= 0)
+                        {
+                            boolean trailer = !splitter.isWhiteSpace(pendingEnd, start);
+                            writeRecord(out, pending, pendingEnd, pendingFields | (trailer ? FLAG_TRAILER << 8 : 0));
+                        }
+                        pending = start;
+                        pendingEnd = end;
+                        pendingFields = readFields(reader);
+                        count++;
+                    }
+                }
+                if (pending >= 0)
+                {
+                    writeRecord(out, pending, pendingEnd, pendingFields);
+                }
+                if (splitter.findTUStart(pendingEnd, splitter.length()) >= 0)
+                {
+                    throw new IOException("Input has more TUs in its bytes than in the document, can not index it");
+                }
+                checkHiddenTUTags(splitter, checked, splitter.length());
+            }
+            finally
+            {
+                reader.close();
+                in.close();
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        RandomAccessFile header = new RandomAccessFile(temp, "rw");
+        try
+        {
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeLong(input.length());
+            header.writeLong(input.lastModified());
+            header.writeLong(count);
+        }
+        finally
+        {
+            header.close();
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+        {
+            throw new IOException("Can not write index " + file);
+        }
+        return count;
+    }
+
+    private static void checkHiddenTUTags(TUSplitter splitter, long from, long to) throws IOException
+    {
+        long hidden = splitter.findHiddenTUTag(from, to);
+        if (hidden >= 0)
+        {
+            throw new IOException("Input has TU tags inside a comment, CDATA section or processing instruction at byte " + hidden
+                    + ", can not index it");
+        }
+    }
+
+    /**
+     * @param fields session, flags and languages, as packed by readFields
+     */
+    private static void writeRecord(DataOutputStream out, long start, long end, int fields) throws IOException
+    {
+        out.writeLong(start);
+        out.writeInt((int) (end - start));
+        out.writeShort(fields >> 16);
+        out.writeByte(fields >> 8);
+        out.writeByte(fields);
+    }
+
+    /**
+     * Read the rest of the TU the reader is at the start of.
+     * @return session, flags and languages, packed in 16, 8 and 8 bits
+     */
+    private static int readFields(XMLStreamReader reader) throws XMLStreamException
+    {
+        short session = NO_SESSION;
+        int flags = 0;
+        int langs = 0;
+        boolean tuvSeen = false;
+        while (reader.hasNext())
+        {
+            int type = reader.next();
+            if (type == XMLStreamConstants.END_ELEMENT && isTU(reader))
+            {
+                break;
+            }
+            if (type != XMLStreamConstants.START_ELEMENT)
+            {
+                continue;
+            }
+
+            //same as in TURewriter: props count before the first TUV only, and the first session only
+            int symbol = TMXSymbols.element(reader.getNamespaceURI(), reader.getLocalName());
+            if (!tuvSeen && symbol == TMXSymbols.PROP)
+            {
+                String propType = reader.getAttributeValue(TURewriter.QNAME_TYPE.getNamespaceURI(), TURewriter.QNAME_TYPE.getLocalPart());
+                if ("vote".equals(propType))
+                {
+                    flags |= FLAG_VOTE;
+                }
+                else if ("session".equals(propType) && session == NO_SESSION)
+                {
+                    session = sessionNumber(reader);
+                }
+            }
+            else if (symbol == TMXSymbols.TUV)
+            {
+                tuvSeen = true;
+                langs |= TMXSymbols.langBit(reader.getAttributeValue(TURewriter.QNAME_LANG.getNamespaceURI(), TURewriter.QNAME_LANG.getLocalPart()));
+            }
+        }
+
+        return session << 16 | (flags & 0xFF) << 8 | (langs & 0xFF);
+    }
+
+    /**
+     * Read the text of the session property, up to the next end element.
+     */
+    private static short sessionNumber(XMLStreamReader reader) throws XMLStreamException
+    {
+        StringBuilder text = new StringBuilder(4);
+        while (reader.next() != XMLStreamConstants.END_ELEMENT)
+        {
+            if (reader.isCharacters())
+            {
+                text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            }
+        }
+        String value = text.toString().trim();
+        try
+        {
+            int number = Integer.parseInt(value);
+            return number >= 0 && number <= Short.MAX_VALUE && Integer.toString(number).equals(value) ? (short) number : OTHER_SESSION;
+        }
+        catch (NumberFormatException ex)
+        {
+            return OTHER_SESSION;
+        }
+    }
+
+    private static boolean isTU(XMLStreamReader reader)
+    {
+        return TMXSymbols.element(reader.getNamespaceURI(), reader.getLocalName()) == TMXSymbols.TU;
+    }
+}
@@ -0,0 +1,539 @@
+package org.uncorpora.utils;
+
+import java.util.Set;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Compiled TU rewrite rules. Built once from the command line flags, then every
+ * keep/drop/flatten decision for a TU is made in a single forward pass, one event
+ * at a time, so the TU does not have to be buffered before it is rewritten.
+ *
+ * Rules, in the order the old multi-pass rewrite applied them:
+ * 1) Drop TU with PROP/@type='vote' before the first TUV (-novote)
+ * 1a) Drop TU without PROP/@type='session' of a kept session before the first TUV (-sessions)
+ * 2) Drop TUV with dropped xml:lang, together with the white space after it (-langs)
+ * 2a) Drop TU left without TUV (-dropEmpty)
+ * 2b) Drop TU whose kept TUVs have the same languages and SEG text as an earlier TU (-dedup)
+ * 3) Drop SUB with content, together with the white space after it (-plaintext)
+ * 4) Drop HI start/end, but keep its content (-plaintext)
+ *
+ * Events can come either as XMLEvent objects or straight off an XMLStreamReader cursor;
+ * both go through the same rules. Element names are turned into {@link TMXSymbols} codes
+ * and languages into bits once per event, so the rules compare ints only.
+ * Holds per-TU state, so each thread needs its own copy. Every TU is counted in the run
+ * metrics, shared by all the copies, once it is kept or dropped.
+ *
+ * Engines hold the events of a TU only until it is decided, and at most maxTUBytes of them.
+ * A TU past that size is streamed out if only -dedup could still drop it, and dropped as
+ * oversized otherwise; see {@link #canStream()}.
+ */
+final class TURewriter
+{
+    static final QName QNAME_LANG = new QName(XMLConstants.XML_NS_URI, "lang");
+    static final QName QNAME_TYPE = new QName("type");
+
+    /** TMXSymbols language bits of the TUVs to drop, 0 to keep them all */
+    private final int droppedLangBits;
+    private final boolean noVote;
+    private final boolean plaintext;
+    /** Sessions to keep, null to keep them all */
+    private final Set<String> keptSessions;
+    private final boolean dropEmpty;
+    /** Fingerprints of the TUs kept so far, null if not deduplicating */
+    private final FingerprintSet dedup;
+    /** Estimated memory an engine may hold for one TU */
+    private final long maxTUBytes;
+    /** TMXSymbols language bits of the TUVs that stay */
+    private final int keptLangBits;
+    private final RunMetrics metrics;
+
+    private final RunMetrics.Clock clock;
+
+    /** Number of TUs started by this copy */
+    private int tuNumber;
+    /** Events looked at in this TU */
+    private int events;
+    private boolean tuvKept;
+    /** Going out as it is read, so a repeat can not drop it any more */
+    private boolean streaming;
+    /** Fingerprint of the kept languages and SEG text so far, with -dedup */
+    private long fingerprint;
+    /** Inside the SEG of a kept TUV, with -dedup */
+    private boolean inSeg;
+
+    /** TMXSymbols code of the element being removed with its content, OTHER if none */
+    private int skipUntil;
+    /** Remove white space following the removed element */
+    private boolean trimming;
+    private boolean tuvSeen;
+    private boolean dropped;
+    private boolean sessionSeen;
+    /** Text of the session property being read, null if not inside one */
+    private StringBuilder sessionText;
+
+    /**
+     * @param validLangs all the languages that can be present
+     * @param keptLangs languages to keep
+     * @param noVote drop the TUs that contain voting information
+     * @param plaintext remove footnotes, flatten symbols
+     * @param keptSessions sessions to keep, null to keep all
+     * @param dropEmpty drop the TUs left without TUV
+     * @param dedup fingerprints of the TUs kept so far, to drop the ones kept before; null to keep repeated TUs
+     * @param maxTUBytes estimated memory an engine may hold for one TU
+     * @param metrics counters to update with the fate of every TU
+     */
+    TURewriter(Set<String> validLangs, Set<String> keptLangs, boolean noVote, boolean plaintext, Set<String> keptSessions, boolean dropEmpty, FingerprintSet dedup, long maxTUBytes, RunMetrics metrics)
+    {
+        int dropped = 0;
+        for (String lang : validLangs)
+        {
+            dropped |= keptLangs.contains(lang) ? 0 : TMXSymbols.langBit(lang);
+        }
+        //once a language is dropped, so are the TUVs without one
+        this.droppedLangBits = dropped == 0 ? 0 : dropped | TMXSymbols.LANG_NONE;
+        this.noVote = noVote;
+        this.plaintext = plaintext;
+        this.keptSessions = keptSessions;
+        this.dropEmpty = dropEmpty;
+        this.dedup = dedup;
+        this.maxTUBytes = maxTUBytes;
+        this.keptLangBits = ~droppedLangBits & (TMXSymbols.LANG_VALID | TMXSymbols.LANG_OTHER | TMXSymbols.LANG_NONE);
+        this.metrics = metrics;
+        this.clock = new RunMetrics.Clock(metrics);
+    }
+
+    private TURewriter(TURewriter other, RunMetrics metrics)
+    {
+        this.droppedLangBits = other.droppedLangBits;
+        this.noVote = other.noVote;
+        this.plaintext = other.plaintext;
+        this.keptSessions = other.keptSessions;
+        this.dropEmpty = other.dropEmpty;
+        this.dedup = other.dedup;
+        this.maxTUBytes = other.maxTUBytes;
+        this.keptLangBits = other.keptLangBits;
+        this.metrics = metrics;
+        this.clock = new RunMetrics.Clock(metrics);
+    }
+
+    /**
+     * @return rewriter with the same rules and fresh state
+     */
+    TURewriter copy()
+    {
+        return new TURewriter(this, metrics);
+    }
+
+    /**
+     * @param metrics counters to update instead of the ones of this rewriter
+     * @return rewriter with the same rules and fresh state
+     */
+    TURewriter copy(RunMetrics metrics)
+    {
+        return new TURewriter(this, metrics);
+    }
+
+    /**
+     * Reset the state before the first event of a TU.
+     */
+    void startTU()
+    {
+        skipUntil = TMXSymbols.OTHER;
+        trimming = false;
+        tuvSeen = false;
+        dropped = false;
+        sessionSeen = false;
+        sessionText = null;
+        events = 0;
+        tuvKept = false;
+        streaming = false;
+        fingerprint = FingerprintSet.SEED;
+        inSeg = false;
+        clock.start((++tuNumber & (RunMetrics.SAMPLE_EVERY - 1)) == 0);
+    }
+
+    RunMetrics metrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * @return stage timer of this copy, started on sampled TUs by {@link #startTU()}
+     */
+    RunMetrics.Clock clock()
+    {
+        return clock;
+    }
+
+    /**
+     * @return true if the whole TU has to be dropped. Once set, stays set until the next TU
+     */
+    boolean isDropped()
+    {
+        return dropped;
+    }
+
+    /**
+     * @return true once nothing later in the TU can cause the whole TU to be dropped,
+     * so the events seen so far can be released
+     */
+    boolean isDecided()
+    {
+        //a repeated TU is only known at its end
+        return dropped || ((dedup == null || streaming) && isDecidedByRules());
+    }
+
+    /**
+     * @return true once no rule but -dedup can drop the whole TU
+     */
+    private boolean isDecidedByRules()
+    {
+        return tuvKept || (!dropEmpty && (tuvSeen || (!noVote && (keptSessions == null || sessionSeen))));
+    }
+
+    long maxTUBytes()
+    {
+        return maxTUBytes;
+    }
+
+    /**
+     * @return true if the TU can go out before its end: it stays unless it is a repeat
+     */
+    boolean canStream()
+    {
+        return !dropped && isDecidedByRules();
+    }
+
+    /**
+     * The TU goes out as it is read, past the memory ceiling. It stays even if it repeats an earlier TU,
+     * but still counts as seen for the TUs after it.
+     */
+    void stream()
+    {
+        streaming = true;
+    }
+
+    /**
+     * Drop the TU for being too large to hold until it is decided.
+     */
+    void dropOversized()
+    {
+        if (!dropped)
+        {
+            drop(RunMetrics.Drop.OVERSIZED);
+        }
+    }
+
+    /**
+     * Tell from the index record of a TU whether it can stay; a TU that can not stay would be dropped as a whole.
+     * @param session session number, or TUIndex.NO_SESSION, TUIndex.OTHER_SESSION
+     * @param flags TUIndex flags
+     * @param langBits TMXSymbols language bits of the TUVs
+     * @return false if the TU is dropped for sure
+     */
+    boolean mayKeep(short session, int flags, int langBits)
+    {
+        if (noVote && (flags & TUIndex.FLAG_VOTE) != 0)
+        {
+            return false;
+        }
+        if (keptSessions != null && (session < 0 || !keptSessions.contains(Integer.toString(session))))
+        {
+            return false;
+        }
+        return !dropEmpty || (langBits & keptLangBits) != 0;
+    }
+
+    /**
+     * Decide on the next event of the TU.
+     * @param event next event, in document order
+     * @return true if the event stays in the TU
+     */
+    boolean accept(XMLEvent event)
+    {
+        events++;
+        if (event instanceof StartElement)
+        {
+            StartElement startElement = event.asStartElement();
+            return acceptStart(TMXSymbols.element(startElement.getName()), startElement, null);
+        }
+        else if (event instanceof EndElement)
+        {
+            return acceptEnd(TMXSymbols.element(event.asEndElement().getName()));
+        }
+        else if (event instanceof Characters)
+        {
+            if (sessionText != null)
+            {
+                sessionText.append(event.asCharacters().getData());
+            }
+            boolean keep = acceptText(event.asCharacters().isWhiteSpace());
+            if (keep && inSeg)
+            {
+                fingerprint = FingerprintSet.hash(fingerprint, event.asCharacters().getData());
+            }
+            return keep;
+        }
+        return acceptOther();
+    }
+
+    /**
+     * Decide on the event the cursor is positioned at. Only the element name and the
+     * attributes the rules look at are read off the cursor.
+     * @param reader cursor positioned at the next event of the TU, in document order
+     * @return true if the event stays in the TU
+     */
+    boolean accept(XMLStreamReader reader)
+    {
+        events++;
+        switch (reader.getEventType())
+        {
+            case XMLStreamConstants.START_ELEMENT:
+                return acceptStart(TMXSymbols.element(reader.getNamespaceURI(), reader.getLocalName()), null, reader);
+            case XMLStreamConstants.END_ELEMENT:
+                return acceptEnd(TMXSymbols.element(reader.getNamespaceURI(), reader.getLocalName()));
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                if (sessionText != null)
+                {
+                    sessionText.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                }
+                //inside removed elements, do not even look at the text
+                if (dropped || skipUntil != TMXSymbols.OTHER || !acceptText(reader.isWhiteSpace()))
+                {
+                    return false;
+                }
+                if (inSeg)
+                {
+                    fingerprint = FingerprintSet.hash(fingerprint, reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                }
+                return true;
+            default:
+                return acceptOther();
+        }
+    }
+
+    private boolean acceptStart(int symbol, StartElement event, XMLStreamReader reader)
+    {
+        if (dropped || skipUntil != TMXSymbols.OTHER)
+        {
+            return false;
+        }
+        trimming = false;
+
+        switch (symbol)
+        {
+            case TMXSymbols.PROP:
+                if (!tuvSeen && (noVote || keptSessions != null))
+                {
+                    String type = attributeValue(QNAME_TYPE, event, reader);
+                    if (noVote && "vote".equals(type))
+                    {
+                        drop(RunMetrics.Drop.VOTE);
+                        return false;
+                    }
+                    if (keptSessions != null && !sessionSeen && "session".equals(type))
+                    {
+                        sessionText = new StringBuilder(4);
+                    }
+                }
+                return true;
+            case TMXSymbols.TUV:
+                if (keptSessions != null && !sessionSeen)
+                {
+                    //props come before TUVs, so there is no session to keep
+                    drop(RunMetrics.Drop.SESSION);
+                    return false;
+                }
+                tuvSeen = true;
+                String lang = droppedLangBits != 0 || dedup != null ? attributeValue(QNAME_LANG, event, reader) : null;
+                if (isDroppedLang(lang))
+                {
+                    skipUntil = TMXSymbols.TUV;
+                    return false;
+                }
+                tuvKept = true;
+                if (dedup != null)
+                {
+                    fingerprint = FingerprintSet.separator(fingerprint, TMXSymbols.langBit(lang));
+                }
+                return true;
+            case TMXSymbols.SEG:
+                inSeg = dedup != null;
+                return true;
+            case TMXSymbols.SUB:
+                if (plaintext)
+                {
+                    skipUntil = TMXSymbols.SUB;
+                    return false;
+                }
+                return true;
+            case TMXSymbols.HI:
+                return !plaintext;
+            default:
+                return true;
+        }
+    }
+
+    private boolean acceptEnd(int symbol)
+    {
+        if (dropped)
+        {
+            return false;
+        }
+
+        if (sessionText != null)
+        {
+            //session property has no children, so this is its end
+            sessionSeen = true;
+            boolean kept = keptSessions.contains(sessionText.toString().trim());
+            sessionText = null;
+            if (!kept)
+            {
+                drop(RunMetrics.Drop.SESSION);
+                return false;
+            }
+        }
+
+        if (skipUntil != TMXSymbols.OTHER)
+        {
+            if (skipUntil == symbol)
+            {
+                //assume not-nested, so the first end closes the removed element
+                skipUntil = TMXSymbols.OTHER;
+                trimming = true;
+            }
+            return false;
+        }
+        trimming = false;
+
+        if (symbol == TMXSymbols.SEG)
+        {
+            inSeg = false;
+        }
+        return !(plaintext && symbol == TMXSymbols.HI);
+    }
+
+    private boolean acceptText(boolean whiteSpace)
+    {
+        if (dropped || skipUntil != TMXSymbols.OTHER)
+        {
+            return false;
+        }
+
+        if (trimming)
+        {
+            if (whiteSpace)
+            {
+                return false;
+            }
+            trimming = false;
+        }
+        return true;
+    }
+
+    private boolean acceptOther()
+    {
+        if (dropped || skipUntil != TMXSymbols.OTHER)
+        {
+            return false;
+        }
+        trimming = false;
+        return true;
+    }
+
+    /**
+     * Rewrite a TU already collected into the window, in one forward pass.
+     * Events that do not stay are only marked as removed; for a dropped TU that is all of them.
+     * @param window events to rewrite
+     * @param from index of the TU start, inclusive
+     * @param to index after the TU end, exclusive
+     */
+    void rewrite(TUWindow window, int from, int to)
+    {
+        startTU();
+        for (int i = from; i < to && !dropped; i++)
+        {
+            if (!accept(window.get(i)))
+            {
+                window.remove(i);
+            }
+        }
+        if (!dropped)
+        {
+            endTU();
+        }
+        if (dropped)
+        {
+            for (int j = from; j < to; j++)
+            {
+                window.remove(j);
+            }
+        }
+    }
+
+    /**
+     * Finish the TU after its last event was accepted. Check {@link #isDropped()} afterwards:
+     * a TU without session is only known to be dropped at its end.
+     */
+    void endTU()
+    {
+        if (dropped)
+        {
+            return;
+        }
+        if (keptSessions != null && !sessionSeen)
+        {
+            drop(RunMetrics.Drop.SESSION);
+            return;
+        }
+        if (noVote && !tuvSeen)
+        {
+            throw new IllegalArgumentException("Looking for vote did not found either vote or start of TUV");
+        }
+        if (dropEmpty && !tuvKept)
+        {
+            drop(RunMetrics.Drop.EMPTY);
+            return;
+        }
+        if (dedup != null && tuvKept && !dedup.add(FingerprintSet.finish(fingerprint)) && !streaming)
+        {
+            drop(RunMetrics.Drop.DUPLICATE);
+            return;
+        }
+        metrics.kept(events, tuvSeen && !tuvKept);
+    }
+
+    private void drop(RunMetrics.Drop reason)
+    {
+        dropped = true;
+        metrics.dropped(reason, events);
+    }
+
+    private boolean isDroppedLang(String lang)
+    {
+        return droppedLangBits != 0 && (TMXSymbols.langBit(lang) & droppedLangBits) != 0;
+    }
+
+    /**
+     * @return attribute value from whichever of event or reader is not null, null if the attribute is not present
+     */
+    private static String attributeValue(QName attribName, StartElement event, XMLStreamReader reader)
+    {
+        if (event != null)
+        {
+            Attribute attrib = event.getAttributeByName(attribName);
+            return attrib == null ? null : attrib.getValue();
+        }
+        return reader.getAttributeValue(attribName.getNamespaceURI(), attribName.getLocalPart());
+    }
+}
@@ -0,0 +1,421 @@
+package org.uncorpora.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds TU boundaries directly in the UTF-8 bytes of a memory-mapped TMX file, so that
+ * the file can be cut into ranges of whole TUs and each range parsed on its own.
+ *
+ * Relies on TMX being regular: a TU start is the bytes '&lt;tu' followed by white space,
+ * '&gt;' or '/', and a TU end is '&lt;/tu' followed by optional white space and '&gt;'.
+ * Inside text and attribute values '&lt;' is always escaped, so these only match markup,
+ * unless the file has them inside comments, CDATA sections or processing instructions.
+ * {@link #findHiddenTUTag} finds those, and such a file must not be cut there.
+ *
+ * The file is mapped in segments of at most 1 GB, so files over 2 GB work as well.
+ * Ranges can be read concurrently.
+ */
+final class TUSplitter
+{
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    /** Bytes findHiddenTUTag reads at once, and how many of them it may look ahead */
+    private static final int SCAN_BLOCK = 1 << 16;
+    private static final int SCAN_LOOKAHEAD = 16;
+
+    /** Markup that may hide TU tags */
+    private static final byte[] COMMENT_START = {'<', '!', '-', '-'};
+    private static final byte[] COMMENT_END = {'-', '-', '>'};
+    private static final byte[] CDATA_START = {'<', '!', '[', 'C', 'D', 'A', 'T', 'A', '['};
+    private static final byte[] CDATA_END = {']', ']', '>'};
+    private static final byte[] PI_END = {'?', '>'};
+
+    private final MappedByteBuffer[] segments;
+    private final long length;
+
+    TUSplitter(File file) throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            FileChannel channel = in.getChannel();
+            length = channel.size();
+            segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++)
+            {
+                long start = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+            }
+        }
+        finally
+        {
+            in.close(); //the mappings stay valid
+        }
+    }
+
+    long length()
+    {
+        return length;
+    }
+
+    byte get(long pos)
+    {
+        return segments[(int) (pos >>> SEGMENT_SHIFT)].get((int) (pos & (SEGMENT_SIZE - 1)));
+    }
+
+    /**
+     * @return offset of the first TU start at or after from and before limit, -1 if there is none
+     */
+    long findTUStart(long from, long limit)
+    {
+        for (long pos = from; pos + 3 < limit; pos++)
+        {
+            if (get(pos) == '<' && isTUStart(pos))
+            {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return offset just after the '&gt;' of the last TU end in the file, -1 if there is none
+     */
+    long findLastTUEnd()
+    {
+        for (long pos = length - 4; pos >= 0; pos--)
+        {
+            if (get(pos) == '<' && get(pos + 1) == '/' && get(pos + 2) == 't' && get(pos + 3) == 'u')
+            {
+                long end = pos + 4;
+                while (end < length && isWhiteSpace(get(end)))
+                {
+                    end++;
+                }
+                if (end < length && get(end) == '>')
+                {
+                    return end + 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return offset of the last TU start in the file, -1 if there is none
+     */
+    long findLastTUStart()
+    {
+        for (long pos = length - 4; pos >= 0; pos--)
+        {
+            if (get(pos) == '<' && isTUStart(pos))
+            {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param tuStart offset of a TU start
+     * @return offset just after the '&gt;' that ends the TU, -1 if the TU does not end
+     */
+    long findTUEnd(long tuStart)
+    {
+        //end of the start tag; attribute values may hold '>' but not quotes of their own kind
+        byte quote = 0;
+        long pos = tuStart + 3;
+        for (; pos < length; pos++)
+        {
+            byte b = get(pos);
+            if (quote != 0)
+            {
+                quote = b == quote ? 0 : quote;
+            }
+            else if (b == '"' || b == '\'')
+            {
+                quote = b;
+            }
+            else if (b == '>')
+            {
+                break;
+            }
+        }
+        if (pos >= length)
+        {
+            return -1;
+        }
+        if (get(pos - 1) == '/')
+        {
+            return pos + 1; //empty TU
+        }
+
+        for (; pos + 3 < length; pos++)
+        {
+            if (get(pos) == '<' && get(pos + 1) == '/' && get(pos + 2) == 't' && get(pos + 3) == 'u')
+            {
+                long end = pos + 4;
+                while (end < length && isWhiteSpace(get(end)))
+                {
+                    end++;
+                }
+                if (end < length && get(end) == '>')
+                {
+                    return end + 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the bytes [from, to) are all white space
+     */
+    boolean isWhiteSpace(long from, long to)
+    {
+        for (long pos = from; pos < to; pos++)
+        {
+            if (!isWhiteSpace(get(pos)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Look in [from, to) for TU tags inside comments, CDATA sections or processing instructions,
+     * which the byte level search would take for markup. Reads the range in blocks, so that every
+     * worker can check its own range. from must not be inside such markup, as a TU start is not.
+     * @return offset of the first comment, CDATA section or processing instruction that holds a TU tag
+     * or is still open at to, -1 if there is none
+     */
+    long findHiddenTUTag(long from, long to)
+    {
+        RangeInputStream in = new RangeInputStream(from, to);
+        byte[] block = new byte[SCAN_BLOCK];
+        int filled = 0;
+        long blockStart = from;
+        byte[] end = null; //end of the markup the scan is inside of
+        long markup = -1;
+        boolean last = false;
+        while (true)
+        {
+            while (!last && filled < block.length)
+            {
+                int count = in.read(block, filled, block.length - filled);
+                last = count < 0;
+                filled += last ? 0 : count;
+            }
+            //the last bytes of a block are only looked at through the next block, where they can be matched in full
+            int scanned = last ? filled : filled - SCAN_LOOKAHEAD;
+            int i = 0;
+            while (i < scanned)
+            {
+                if (end == null)
+                {
+                    if (block[i] != '<')
+                    {
+                        i++;
+                    }
+                    else if (matches(block, i, filled, COMMENT_START))
+                    {
+                        end = COMMENT_END;
+                        markup = blockStart + i;
+                        i += COMMENT_START.length;
+                    }
+                    else if (matches(block, i, filled, CDATA_START))
+                    {
+                        end = CDATA_END;
+                        markup = blockStart + i;
+                        i += CDATA_START.length;
+                    }
+                    else if (i + 1 < filled && block[i + 1] == '?')
+                    {
+                        end = PI_END;
+                        markup = blockStart + i;
+                        i += 2;
+                    }
+                    else
+                    {
+                        i++;
+                    }
+                }
+                else if (matches(block, i, filled, end))
+                {
+                    i += end.length;
+                    end = null;
+                }
+                else if (block[i] == '<' && isTUTag(block, i, filled))
+                {
+                    return markup;
+                }
+                else
+                {
+                    i++;
+                }
+            }
+            if (last)
+            {
+                return end == null ? -1 : markup;
+            }
+            System.arraycopy(block, i, block, 0, filled - i);
+            blockStart += i;
+            filled -= i;
+        }
+    }
+
+    private static boolean matches(byte[] block, int i, int length, byte[] bytes)
+    {
+        if (i + bytes.length > length)
+        {
+            return false;
+        }
+        for (int j = 0; j < bytes.length; j++)
+        {
+            if (block[i + j] != bytes[j])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the '&lt;' at i of the block starts a TU, as for {@link #findTUStart}
+     */
+    static boolean isTUStart(byte[] block, int i, int length)
+    {
+        if (i + 3 >= length || block[i + 1] != 't' || block[i + 2] != 'u')
+        {
+            return false;
+        }
+        byte next = block[i + 3];
+        return isWhiteSpace(next) || next == '>' || next == '/';
+    }
+
+    /**
+     * @return true if the '&lt;' at i starts a TU start tag or a TU end tag
+     */
+    private static boolean isTUTag(byte[] block, int i, int length)
+    {
+        int name = i + 1 < length && block[i + 1] == '/' ? i + 2 : i + 1;
+        if (name + 2 >= length || block[name] != 't' || block[name + 1] != 'u')
+        {
+            return false;
+        }
+        byte next = block[name + 2];
+        return isWhiteSpace(next) || next == '>' || (next == '/' && name == i + 1);
+    }
+
+    private boolean isTUStart(long pos)
+    {
+        if (get(pos + 1) != 't' || get(pos + 2) != 'u')
+        {
+            return false;
+        }
+        byte next = get(pos + 3);
+        return isWhiteSpace(next) || next == '>' || next == '/';
+    }
+
+    private static boolean isWhiteSpace(byte b)
+    {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    /**
+     * Cut [firstTU, lastTUEnd) into ranges of whole TUs, each about rangeSize bytes.
+     * Every range but the last starts at a TU start and ends just before the next range's TU start,
+     * so it holds the TUs with whatever follows them; the last one ends with the last TU end.
+     * @return boundaries: range i is [bounds[i], bounds[i+1])
+     */
+    long[] split(long firstTU, long lastTUEnd, long rangeSize)
+    {
+        List<Long> bounds = new ArrayList<Long>();
+        bounds.add(firstTU);
+        long start = firstTU;
+        while (true)
+        {
+            long next = findTUStart(start + Math.max(1, rangeSize), lastTUEnd);
+            if (next < 0)
+            {
+                break;
+            }
+            bounds.add(next);
+            start = next;
+        }
+        bounds.add(lastTUEnd);
+
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++)
+        {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return stream over the bytes [start, end) of the file
+     */
+    InputStream open(long start, long end)
+    {
+        return new RangeInputStream(start, end);
+    }
+
+    private final class RangeInputStream extends InputStream
+    {
+        private long pos;
+        private final long end;
+        /** Own view of the current segment, as the mapped buffers are shared between threads */
+        private ByteBuffer view;
+        private int viewSegment = -1;
+
+        RangeInputStream(long start, long end)
+        {
+            this.pos = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read()
+        {
+            return pos < end ? get(pos++) & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (pos >= end)
+            {
+                return -1;
+            }
+            int segment = (int) (pos >>> SEGMENT_SHIFT);
+            if (segment != viewSegment)
+            {
+                view = segments[segment].duplicate();
+                viewSegment = segment;
+            }
+            int inSegment = (int) (pos & (SEGMENT_SIZE - 1));
+            int count = (int) Math.min(len, Math.min(end - pos, view.capacity() - inSegment));
+            view.position(inSegment);
+            view.get(b, off, count);
+            pos += count;
+            return count;
+        }
+
+        @Override
+        public int available()
+        {
+            return (int) Math.min(Integer.MAX_VALUE, end - pos);
+        }
+    }
+}
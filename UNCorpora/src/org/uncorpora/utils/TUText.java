@@ -0,0 +1,206 @@
+package org.uncorpora.utils;
+
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Plain text of a rewritten TU, per language, for the exports that do not write TMX.
+ * The text of a language is the text of the SEG of its TUV, with white space runs (line breaks
+ * included) collapsed to single spaces and none at the start or end. A TUV goes to a language
+ * when the rewrite rules count it as that language. Also picks up the tuid, the first session
+ * and whether the TU holds voting information. Buffers are reused from one TU to the next.
+ */
+final class TUText
+{
+    /** TMXSymbols bit of each language */
+    private final int[] langBits;
+    private final StringBuilder[] texts;
+    private final boolean[] pendingSpace;
+    private final StringBuilder session = new StringBuilder(8);
+    private String tuid;
+    private boolean vote;
+    private boolean hasSession;
+
+    /**
+     * @param langs codes of the languages to take the text of, as in VALID_LANGS
+     */
+    TUText(String[] langs)
+    {
+        this.langBits = new int[langs.length];
+        this.texts = new StringBuilder[langs.length];
+        this.pendingSpace = new boolean[langs.length];
+        for (int i = 0; i < langs.length; i++)
+        {
+            langBits[i] = TMXSymbols.langBit(langs[i]);
+            texts[i] = new StringBuilder(256);
+        }
+    }
+
+    /**
+     * Take the text of a TU, replacing that of the previous one.
+     * @param tu kept events of the TU
+     */
+    void read(TUWindow tu)
+    {
+        for (int l = 0; l < texts.length; l++)
+        {
+            texts[l].setLength(0);
+            pendingSpace[l] = false;
+        }
+        session.setLength(0);
+        tuid = null;
+        vote = false;
+        hasSession = false;
+
+        boolean inSession = false;
+        int lang = -1;
+        boolean inSeg = false;
+        for (int i = tu.nextLive(0); i < tu.size(); i = tu.nextLive(i + 1))
+        {
+            XMLEvent event = tu.get(i);
+            if (event.isStartElement())
+            {
+                StartElement startElement = event.asStartElement();
+                switch (TMXSymbols.element(startElement.getName()))
+                {
+                    case TMXSymbols.TU:
+                        Attribute id = startElement.getAttributeByName(Processor.QNAME_TUID);
+                        tuid = id == null ? null : id.getValue();
+                        break;
+                    case TMXSymbols.PROP:
+                        Attribute type = startElement.getAttributeByName(TURewriter.QNAME_TYPE);
+                        if (type != null && "vote".equals(type.getValue()))
+                        {
+                            vote = true;
+                        }
+                        else if (type != null && "session".equals(type.getValue()) && !hasSession)
+                        {
+                            hasSession = inSession = true;
+                        }
+                        break;
+                    case TMXSymbols.TUV:
+                        Attribute langAttribute = startElement.getAttributeByName(TURewriter.QNAME_LANG);
+                        lang = TMXSymbols.langIndex(langAttribute == null ? null : langAttribute.getValue(), langBits);
+                        break;
+                    case TMXSymbols.SEG:
+                        inSeg = true;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            else if (event.isEndElement())
+            {
+                switch (TMXSymbols.element(event.asEndElement().getName()))
+                {
+                    case TMXSymbols.PROP:
+                        inSession = false;
+                        break;
+                    case TMXSymbols.TUV:
+                        lang = -1;
+                        break;
+                    case TMXSymbols.SEG:
+                        inSeg = false;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            else if (event.isCharacters())
+            {
+                if (inSeg && lang >= 0)
+                {
+                    append(lang, event.asCharacters().getData());
+                }
+                else if (inSession)
+                {
+                    session.append(event.asCharacters().getData());
+                }
+            }
+        }
+        trim(session);
+    }
+
+    /**
+     * @param lang index of the language, as given to the constructor
+     * @return its collapsed text, empty if the TU has none
+     */
+    StringBuilder text(int lang)
+    {
+        return texts[lang];
+    }
+
+    /**
+     * @return tuid attribute of the TU, null if it has none
+     */
+    String tuid()
+    {
+        return tuid;
+    }
+
+    /**
+     * @return true if the TU has a vote prop
+     */
+    boolean hasVote()
+    {
+        return vote;
+    }
+
+    /**
+     * @return true if the TU has a session prop
+     */
+    boolean hasSession()
+    {
+        return hasSession;
+    }
+
+    /**
+     * @return text of the first session prop, without leading and trailing white space
+     */
+    StringBuilder session()
+    {
+        return session;
+    }
+
+    /**
+     * Append text to the language's, collapsing white space and dropping it at the start.
+     */
+    private void append(int lang, String text)
+    {
+        StringBuilder line = texts[lang];
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c))
+            {
+                pendingSpace[lang] = line.length() > 0;
+            }
+            else
+            {
+                if (pendingSpace[lang])
+                {
+                    line.append(' ');
+                    pendingSpace[lang] = false;
+                }
+                line.append(c);
+            }
+        }
+    }
+
+    private static void trim(StringBuilder text)
+    {
+        int end = text.length();
+        while (end > 0 && Character.isWhitespace(text.charAt(end - 1)))
+        {
+            end--;
+        }
+        text.setLength(end);
+        int start = 0;
+        while (start < end && Character.isWhitespace(text.charAt(start)))
+        {
+            start++;
+        }
+        text.delete(0, start);
+    }
+}
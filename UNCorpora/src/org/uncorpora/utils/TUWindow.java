@@ -0,0 +1,210 @@
+package org.uncorpora.utils;
+
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Index-addressable window over the events of one TU (or the events between TUs).
+ * Backed by a plain array that is reused from one TU to the next, so steady-state
+ * processing does not allocate a node per event the way a LinkedList does.
+ * Deletion only marks a slot; marked slots are skipped by the readers and squeezed
+ * out by {@link #compact()} in a single linear pass.
+ *
+ * Keeps an estimate of the memory its events hold, for the engines to bound what they
+ * hold for one TU.
+ */
+final class TUWindow
+{
+    private static final int DEFAULT_CAPACITY = 256;
+    /** Estimated size of an event object, without its text */
+    static final int EVENT_BYTES = 64;
+
+    private XMLEvent[] events;
+    /** Own storage while events is the storage of the window this one is a view of */
+    private XMLEvent[] own;
+    private boolean[] removed;
+    private int size;
+    private int removedCount;
+    private long bytes;
+
+    TUWindow()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    TUWindow(int initialCapacity)
+    {
+        events = new XMLEvent[initialCapacity];
+        removed = new boolean[initialCapacity];
+    }
+
+    void add(XMLEvent event)
+    {
+        assert own == null : "adding to a view";
+        if (size == events.length)
+        {
+            grow();
+        }
+        events[size++] = event;
+        bytes += bytes(event);
+    }
+
+    /**
+     * @return estimated memory held by the events added since the last clear, removed ones included until compacted
+     */
+    long bytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return estimated memory held by the event: the object and its text
+     */
+    static long bytes(XMLEvent event)
+    {
+        return EVENT_BYTES + (event.isCharacters() ? 2L * event.asCharacters().getData().length() : 0);
+    }
+
+    /**
+     * Drop the events from the slot on, keeping the ones before it.
+     */
+    void truncate(int from)
+    {
+        assert own == null : "truncating a view";
+        for (int i = from; i < size; i++)
+        {
+            bytes -= bytes(events[i]);
+            if (removed[i])
+            {
+                removedCount--;
+            }
+            events[i] = null;
+            removed[i] = false;
+        }
+        size = Math.min(size, from);
+    }
+
+    /**
+     * @return number of slots, including the ones marked as removed
+     */
+    int size()
+    {
+        return size;
+    }
+
+    XMLEvent get(int i)
+    {
+        return events[i];
+    }
+
+    boolean isRemoved(int i)
+    {
+        return removed[i];
+    }
+
+    /**
+     * Mark the slot as removed. The event stays addressable until {@link #compact()}.
+     */
+    void remove(int i)
+    {
+        if (!removed[i])
+        {
+            removed[i] = true;
+            removedCount++;
+        }
+    }
+
+    /**
+     * @return index of the first live slot at or after i, or size() if there is none
+     */
+    int nextLive(int i)
+    {
+        while (i < size && removed[i])
+        {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Squeeze out the removed slots, keeping the order of the live ones.
+     */
+    void compact()
+    {
+        if (removedCount == 0)
+        {
+            return;
+        }
+        assert own == null : "compacting a view";
+        int to = 0;
+        for (int from = 0; from < size; from++)
+        {
+            if (!removed[from])
+            {
+                events[to++] = events[from];
+            }
+            else
+            {
+                removed[from] = false;
+                bytes -= bytes(events[from]);
+            }
+        }
+        for (int i = to; i < size; i++)
+        {
+            events[i] = null;
+        }
+        size = to;
+        removedCount = 0;
+    }
+
+    /**
+     * Show the events of another window, with removal marks of its own and none of them set, so that
+     * several threads can rewrite the same events. The other window must not change meanwhile, and
+     * this one only marks removals until {@link #clear()} drops the view.
+     */
+    void view(TUWindow source)
+    {
+        clear();
+        if (removed.length < source.size)
+        {
+            removed = new boolean[source.removed.length];
+        }
+        own = events;
+        events = source.events;
+        size = source.size;
+        bytes = source.bytes;
+    }
+
+    /**
+     * Drop all the events, but keep the storage for the next TU.
+     */
+    void clear()
+    {
+        for (int i = 0; i < size; i++)
+        {
+            if (own == null)
+            {
+                events[i] = null;
+            }
+            removed[i] = false;
+        }
+        if (own != null)
+        {
+            events = own;
+            own = null;
+        }
+        size = 0;
+        removedCount = 0;
+        bytes = 0;
+    }
+
+    private void grow()
+    {
+        int capacity = events.length * 2;
+        XMLEvent[] newEvents = new XMLEvent[capacity];
+        boolean[] newRemoved = new boolean[capacity];
+        System.arraycopy(events, 0, newEvents, 0, size);
+        System.arraycopy(removed, 0, newRemoved, 0, size);
+        events = newEvents;
+        removed = newRemoved;
+    }
+}
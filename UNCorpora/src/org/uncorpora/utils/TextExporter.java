@@ -0,0 +1,111 @@
+package org.uncorpora.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Line-aligned plain text export, one writer per language (Moses style corpus).
+ * Every TU that survives the rewrite rules becomes one line in each of the files; a language
+ * missing from the TU gives an empty line, so line N of every file comes from the same TU.
+ * A line is the text of the language in the TU, as {@link TUText} takes it. Nothing goes
+ * through XML serialisation; the text is taken straight from the events of the rewritten TU.
+ */
+final class TextExporter
+{
+    private final TURewriter rewriter;
+    private final Writer[] writers;
+    private final TUText text;
+    /** A line and its newline, to hand to the writer without making a String of it */
+    private char[] chars = new char[4096];
+
+    /**
+     * @param rewriter rules to apply before taking the text
+     * @param langs codes of the exported languages, as in VALID_LANGS
+     * @param writers destination of each language, closed at the end of the run
+     */
+    TextExporter(TURewriter rewriter, String[] langs, Writer[] writers)
+    {
+        this.rewriter = rewriter;
+        this.writers = writers;
+        this.text = new TUText(langs);
+    }
+
+    /**
+     * Export the whole document.
+     * @param eventReader source of events
+     * @param streamReader cursor eventReader was created over, or null, to skip dropped TUs on
+     * @throws XMLStreamException
+     * @throws IOException
+     */
+    void run(XMLEventReader eventReader, XMLStreamReader streamReader) throws XMLStreamException, IOException
+    {
+        boolean exported = false;
+        try
+        {
+            TUWindow buffer = new TUWindow();
+
+            //the head has no text to export
+            boolean tuSeen = Processor.collectUntilTU(eventReader, buffer, false);
+            buffer.clear();
+
+            while (tuSeen)
+            {
+                tuSeen = Processor.collectTU(eventReader, streamReader, buffer, rewriter, null); //only kept events, none if dropped
+                if (!tuSeen)
+                {
+                    throw new XMLStreamException("Input ended inside a TU");
+                }
+                if (buffer.size() > 0)
+                {
+                    exportTU(buffer);
+                    rewriter.clock().lap(RunMetrics.Stage.WRITE);
+                }
+                buffer.clear();
+
+                tuSeen = Processor.collectUntilTU(eventReader, buffer, false); //nothing between TUs is exported
+                buffer.clear();
+            }
+            rewriter.clock().stop();
+            exported = true;
+        }
+        finally
+        {
+            IOException failure = null;
+            for (Writer writer : writers)
+            {
+                try
+                {
+                    writer.close();
+                }
+                catch (IOException ex)
+                {
+                    failure = failure == null ? ex : failure;
+                }
+            }
+            if (failure != null && exported) //else the failure of the export goes on
+            {
+                throw failure;
+            }
+        }
+    }
+
+    private void exportTU(TUWindow tu) throws IOException
+    {
+        text.read(tu);
+        for (int l = 0; l < writers.length; l++)
+        {
+            StringBuilder line = text.text(l);
+            int length = line.length();
+            if (chars.length <= length)
+            {
+                chars = new char[Math.max(length + 1, 2 * chars.length)];
+            }
+            line.getChars(0, length, chars, 0);
+            chars[length] = '\n';
+            writers[l].write(chars, 0, length + 1);
+        }
+    }
+}
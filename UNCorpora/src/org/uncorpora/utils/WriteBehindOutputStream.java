@@ -0,0 +1,194 @@
+package org.uncorpora.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Output stream that writes to its destination on a thread of its own, a few blocks behind the writer.
+ * Put in front of a compressing stream, it lets serialisation and compression run on two cores.
+ * A failure of the destination comes out of the next write, flush or close.
+ */
+final class WriteBehindOutputStream extends OutputStream
+{
+    private static final int BLOCKS_BEHIND = 4;
+    /** Asks the thread to flush the destination */
+    private static final byte[] FLUSH = new byte[0];
+    /** Asks the thread to close the destination and stop */
+    private static final byte[] CLOSE = new byte[0];
+
+    private final OutputStream destination;
+    private final BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<byte[]>(BLOCKS_BEHIND);
+    /** Taken from by the thread after each flush or close it carried out */
+    private final BlockingQueue<Object> done = new ArrayBlockingQueue<Object>(1);
+    private final Thread thread;
+    private volatile IOException failure;
+    private boolean closed;
+
+    private byte[] block;
+    private int count;
+
+    /**
+     * @param destination stream written on the background thread, closed together with this one
+     * @param blockSize size of the blocks handed over between the threads
+     */
+    WriteBehindOutputStream(OutputStream destination, int blockSize)
+    {
+        this.destination = destination;
+        this.block = new byte[blockSize];
+        thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                writeBehind();
+            }
+        }, "write-behind");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void writeBehind()
+    {
+        try
+        {
+            while (true)
+            {
+                byte[] next = blocks.take();
+                try
+                {
+                    if (failure == null)
+                    {
+                        if (next == FLUSH)
+                        {
+                            destination.flush();
+                        }
+                        else if (next == CLOSE)
+                        {
+                            destination.close();
+                        }
+                        else
+                        {
+                            destination.write(next);
+                        }
+                    }
+                }
+                catch (IOException ex)
+                {
+                    failure = ex;
+                }
+
+                if (next == FLUSH || next == CLOSE)
+                {
+                    done.put(next);
+                    if (next == CLOSE)
+                    {
+                        return;
+                    }
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            //nobody is waiting any more
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        if (count == block.length)
+        {
+            handOver(block);
+            block = new byte[block.length];
+            count = 0;
+        }
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            if (count == block.length)
+            {
+                handOver(block);
+                block = new byte[block.length];
+                count = 0;
+            }
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        handOverPartial();
+        handOver(FLUSH);
+        awaitDone();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        handOverPartial();
+        handOver(CLOSE);
+        awaitDone();
+    }
+
+    private void handOverPartial() throws IOException
+    {
+        if (count > 0)
+        {
+            byte[] partial = new byte[count];
+            System.arraycopy(block, 0, partial, 0, count);
+            handOver(partial);
+            count = 0;
+        }
+    }
+
+    private void handOver(byte[] next) throws IOException
+    {
+        checkFailure();
+        try
+        {
+            blocks.put(next);
+        }
+        catch (InterruptedException ex)
+        {
+            throw (InterruptedIOException) new InterruptedIOException().initCause(ex);
+        }
+    }
+
+    private void awaitDone() throws IOException
+    {
+        try
+        {
+            done.take();
+        }
+        catch (InterruptedException ex)
+        {
+            throw (InterruptedIOException) new InterruptedIOException().initCause(ex);
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException
+    {
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.uncorpora.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Saving a checkpoint and resuming from it.
+ */
+public class CheckpointTest
+{
+    private static final String RULES = "langs=[EN, FR] novote=true";
+
+    private File inFile;
+    private File outFile;
+
+    @Before
+    public void createFiles() throws IOException
+    {
+        inFile = File.createTempFile("checkpoint", ".tmx");
+        outFile = File.createTempFile("checkpoint", ".out");
+        write(inFile, "<tmx>input</tmx>", false);
+    }
+
+    @After
+    public void deleteFiles()
+    {
+        inFile.delete();
+        outFile.delete();
+        new File(outFile.getPath() + ".checkpoint").delete();
+    }
+
+    private static void write(File file, String text, boolean append) throws IOException
+    {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file, append), "UTF-8");
+        try
+        {
+            out.write(text);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * A run that writes "header", a range of 3 TUs ending at input offset 100, then fails after
+     * writing part of the next range.
+     */
+    private void failedRun() throws IOException
+    {
+        Checkpoint checkpoint = Checkpoint.start(inFile, outFile, RULES, false, 0);
+        assertFalse(checkpoint.isResuming());
+        assertEquals(-1, checkpoint.resumeOffset());
+        Writer out = new OutputStreamWriter(new FileOutputStream(outFile), "UTF-8");
+        out.write("header");
+        out.write("range1");
+        checkpoint.written(out, 100, 3);
+        out.write("partial");
+        out.close();
+    }
+
+    @Test
+    public void resumeCutsTheOutputBack() throws IOException
+    {
+        failedRun();
+        assertEquals("headerrange1partial".length(), outFile.length());
+
+        Checkpoint checkpoint = Checkpoint.start(inFile, outFile, RULES, true, 0);
+        assertTrue(checkpoint.isResuming());
+        assertEquals(100, checkpoint.resumeOffset());
+        assertEquals("headerrange1".length(), outFile.length());
+
+        checkpoint.finish();
+        assertFalse(new File(outFile.getPath() + ".checkpoint").exists());
+    }
+
+    @Test
+    public void noCheckpointBeforeTheInterval() throws IOException
+    {
+        Checkpoint checkpoint = Checkpoint.start(inFile, outFile, RULES, false, 60000);
+        Writer out = new OutputStreamWriter(new FileOutputStream(outFile), "UTF-8");
+        checkpoint.written(out, 100, 3);
+        out.close();
+        assertFalse(new File(outFile.getPath() + ".checkpoint").exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void nothingToResume() throws IOException
+    {
+        Checkpoint.start(inFile, outFile, RULES, true, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void inputChanged() throws IOException
+    {
+        failedRun();
+        write(inFile, "<!-- more -->", true);
+        Checkpoint.start(inFile, outFile, RULES, true, 0);
+    }
+
+    @Test
+    public void rulesChanged() throws IOException
+    {
+        failedRun();
+        try
+        {
+            Checkpoint.start(inFile, outFile, "langs=[EN] novote=true", true, 0);
+            fail("resumed with other rules");
+        }
+        catch (IOException ex)
+        {
+            assertTrue(ex.getMessage(), ex.getMessage().indexOf(RULES) >= 0);
+        }
+        assertEquals("output is left as it was", "headerrange1partial".length(), outFile.length());
+    }
+
+    @Test(expected = IOException.class)
+    public void outputShorterThanAtTheCheckpoint() throws IOException
+    {
+        failedRun();
+        write(outFile, "head", false);
+        Checkpoint.start(inFile, outFile, RULES, true, 0);
+    }
+}
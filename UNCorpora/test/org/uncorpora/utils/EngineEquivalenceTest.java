@@ -0,0 +1,417 @@
+package org.uncorpora.utils;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Every engine writes the same output as the default event engine, under a few sets of rules:
+ * the same bytes with -threads, -split, each output of -fanout, an -incremental run over an
+ * edited input, and a split run that fails half way and is finished with -resume; the same XML
+ * with -cursor, which may write attributes in another order.
+ */
+public class EngineEquivalenceTest
+{
+    private static final String[] LANGS = {"EN", "FR", "ES", "AR", "ZH", "RU", "en"};
+    private static final String[] WORDS = {"the", "assembly", "décide", "резолюция", "决议", "الدول", "&amp;", "&lt;tu&gt;"};
+    /** Rules to compare the engines under */
+    private static final String[][] RULES = {
+        {},
+        {"-langs", "EN,FR", "-novote", "-plaintext"},
+        {"-sessions", "56,58", "-dropEmpty", "-langs", "ZH"}
+    };
+    /** Enough TUs for a few split ranges */
+    private static final int TU_COUNT = 3500;
+
+    private File dir;
+    private File input;
+
+    @Before
+    public void generateInput() throws IOException
+    {
+        dir = File.createTempFile("equivalence", "");
+        dir.delete();
+        dir.mkdir();
+        input = new File(dir, "input.tmx");
+        generate(input, TU_COUNT, -1);
+    }
+
+    @After
+    public void deleteFiles()
+    {
+        for (File file : dir.listFiles())
+        {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Write a TMX document. TUs carry several attributes, sessions 55 to 59, a vote on some,
+     * and TUVs in the valid languages and one the rules do not know.
+     * @param tuCount number of TUs; a longer file starts with the TUs of a shorter one
+     * @param edited TU to write with other text, -1 for none
+     */
+    private static void generate(File file, int tuCount, int edited) throws IOException
+    {
+        Random random = new Random(1);
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 16);
+        try
+        {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<tmx version=\"1.4\">\n");
+            out.write("<header creationtool=\"test\" segtype=\"paragraph\" o-tmf=\"x\" adminlang=\"EN\" srclang=\"EN\" datatype=\"plaintext\"/>\n<body>\n");
+            for (int i = 0; i < tuCount; i++)
+            {
+                out.write("<tu tuid=\"" + i + "\" datatype=\"plaintext\" creationdate=\"20100101T000000Z\" srclang=\"EN\">\n");
+                out.write("  <prop type=\"session\">" + (55 + random.nextInt(5)) + "</prop>\n");
+                if (random.nextInt(5) == 0)
+                {
+                    out.write("  <prop type=\"vote\">yes</prop>\n");
+                }
+                for (String lang : LANGS)
+                {
+                    if (random.nextInt(8) == 0)
+                    {
+                        continue;
+                    }
+                    out.write("  <tuv xml:lang=\"" + lang + "\" changedate=\"20100101T000000Z\">\n    <seg>");
+                    int words = 2 + random.nextInt(120);
+                    for (int w = 0; w < words; w++)
+                    {
+                        int r = random.nextInt(40);
+                        if (r == 0)
+                        {
+                            out.write("<hi type=\"symbol\" x=\"1\">A/" + w + "</hi> ");
+                        }
+                        else if (r == 1)
+                        {
+                            out.write("<sub type=\"fnote\">note " + w + "</sub>\n ");
+                        }
+                        else
+                        {
+                            String word = WORDS[random.nextInt(WORDS.length)];
+                            out.write(i == edited ? "edited " : word + " ");
+                        }
+                    }
+                    out.write("</seg>\n  </tuv>\n");
+                }
+                out.write("</tu>\n");
+                if (i % 100 == 3)
+                {
+                    out.write("<!-- between TUs -->\n");
+                }
+            }
+            out.write("</body>\n</tmx>\n");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static String[] args(String[] rules, String... more)
+    {
+        List<String> args = new ArrayList<String>(Arrays.asList(rules));
+        args.add("-progress");
+        args.add("0");
+        args.addAll(Arrays.asList(more));
+        return args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * Run the processor on the input with the rules and flags, into the output.
+     * @return the processor, after the run
+     */
+    private Processor run(File in, File out, String[] rules, String... flags) throws Exception
+    {
+        List<String> more = new ArrayList<String>(Arrays.asList(flags));
+        more.add("-output");
+        more.add(out.getPath());
+        more.add(in.getPath());
+        Processor processor = Processor.fromArgs(args(rules, more.toArray(new String[more.size()])));
+        processor.run();
+        return processor;
+    }
+
+    private static byte[] read(File file) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            byte[] buffer = new byte[1 << 16];
+            int count;
+            while ((count = in.read(buffer)) >= 0)
+            {
+                bytes.write(buffer, 0, count);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void assertSameBytes(String what, File expected, File actual) throws IOException
+    {
+        assertArrayEquals(what, read(expected), read(actual));
+    }
+
+    /**
+     * @return the events of the document, one string each, with the namespace declarations and
+     * attributes of an element in a fixed order
+     */
+    private static List<String> events(File file) throws IOException, XMLStreamException
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            List<String> events = new ArrayList<String>();
+            events.add(reader.getVersion() + " " + reader.getCharacterEncodingScheme() + " " + reader.standaloneSet());
+            while (reader.hasNext())
+            {
+                int type = reader.next();
+                StringBuilder event = new StringBuilder().append(type).append(' ');
+                switch (type)
+                {
+                    case XMLStreamConstants.START_ELEMENT:
+                        event.append(reader.getName());
+                        TreeSet<String> declarations = new TreeSet<String>();
+                        for (int i = 0; i < reader.getNamespaceCount(); i++)
+                        {
+                            declarations.add("xmlns:" + reader.getNamespacePrefix(i) + "=" + reader.getNamespaceURI(i));
+                        }
+                        for (int i = 0; i < reader.getAttributeCount(); i++)
+                        {
+                            declarations.add(reader.getAttributeName(i) + "=" + reader.getAttributeValue(i));
+                        }
+                        event.append(declarations);
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        event.append(reader.getName());
+                        break;
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        event.append(reader.getPITarget()).append(' ').append(reader.getPIData());
+                        break;
+                    default:
+                        if (reader.hasText())
+                        {
+                            event.append(reader.getText());
+                        }
+                        break;
+                }
+                events.add(event.toString());
+            }
+            reader.close();
+            return events;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Compare two documents as XML, not minding the order of the attributes within an element.
+     */
+    private static void assertSameXML(String what, File expected, File actual) throws IOException, XMLStreamException
+    {
+        List<String> expectedEvents = events(expected);
+        List<String> actualEvents = events(actual);
+        for (int i = 0; i < Math.min(expectedEvents.size(), actualEvents.size()); i++)
+        {
+            assertEquals(what + ", event " + i, expectedEvents.get(i), actualEvents.get(i));
+        }
+        assertEquals(what + ", number of events", expectedEvents.size(), actualEvents.size());
+    }
+
+    @Test
+    public void enginesWriteTheSameBytes() throws Exception
+    {
+        for (String[] rules : RULES)
+        {
+            String name = Arrays.toString(rules);
+            File expected = new File(dir, "expected.tmx");
+            run(input, expected, rules);
+
+            String[][] engines = {{"-threads", "4"}, {"-split"}, {"-split", "-threads", "3"}};
+            for (String[] engine : engines)
+            {
+                File actual = new File(dir, "actual.tmx");
+                run(input, actual, rules, engine);
+                assertSameBytes(name + " " + Arrays.toString(engine), expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void cursorWritesTheSameXML() throws Exception
+    {
+        for (String[] rules : RULES)
+        {
+            String name = Arrays.toString(rules);
+            File expected = new File(dir, "expected.tmx");
+            run(input, expected, rules);
+            File actual = new File(dir, "actual.tmx");
+            run(input, actual, rules, "-cursor");
+            assertSameXML(name + " -cursor", expected, actual);
+        }
+    }
+
+    @Test
+    public void fanOutWritesWhatSeparateRunsWrite() throws Exception
+    {
+        File specs = new File(dir, "fanout.txt");
+        Writer spec = new OutputStreamWriter(new FileOutputStream(specs), "UTF-8");
+        try
+        {
+            for (int i = 0; i < RULES.length; i++)
+            {
+                //paths with a space, quoted either way
+                String quote = i % 2 == 0 ? "\"" : "'";
+                spec.write("-output " + quote + new File(dir, "fan out " + i + ".tmx").getPath() + quote);
+                for (String rule : RULES[i])
+                {
+                    spec.write(" " + rule);
+                }
+                spec.write("\n");
+            }
+        }
+        finally
+        {
+            spec.close();
+        }
+        Processor.fromArgs(args(new String[0], "-fanout", specs.getPath(), input.getPath())).run();
+
+        for (int i = 0; i < RULES.length; i++)
+        {
+            File expected = new File(dir, "expected.tmx");
+            run(input, expected, RULES[i]);
+            assertSameBytes(Arrays.toString(RULES[i]) + " -fanout", expected, new File(dir, "fan out " + i + ".tmx"));
+        }
+    }
+
+    @Test
+    public void incrementalRunOverAnEditedInput() throws Exception
+    {
+        File edited = new File(dir, "edited.tmx");
+        generate(edited, TU_COUNT + 300, 1234);
+        for (String[] rules : RULES)
+        {
+            String name = Arrays.toString(rules);
+            File output = new File(dir, "incremental.tmx");
+            output.delete();
+            IncrementalManifest.manifestFile(output).delete();
+
+            File expected = new File(dir, "expected.tmx");
+            Processor full = run(input, expected, rules, "-split");
+            Processor first = run(input, output, rules, "-incremental");
+            assertSameBytes(name + " first incremental run", expected, output);
+            assertEquals(full.metrics().getTusRead(), first.metrics().getTusRead());
+
+            full = run(edited, expected, rules, "-split");
+            Processor second = run(edited, output, rules, "-incremental");
+            assertSameBytes(name + " incremental run over the edited input", expected, output);
+            assertEquals(full.metrics().getTusRead(), second.metrics().getTusRead());
+            assertEquals(full.metrics().getTusKept(), second.metrics().getTusKept());
+        }
+    }
+
+    @Test
+    public void resumedRunFinishesTheOutput() throws Exception
+    {
+        for (String[] rules : RULES)
+        {
+            String name = Arrays.toString(rules);
+            File expected = new File(dir, "expected.tmx");
+            run(input, expected, rules);
+
+            //a split run with a checkpoint after every range, whose output fails half way through
+            File output = new File(dir, "resumed.tmx");
+            Processor processor = Processor.fromArgs(args(rules, "-split", "-checkpoint", "0", "-output", output.getPath(), input.getPath()));
+            Checkpoint checkpoint = Checkpoint.start(input, output, processor.rules(), false, 0);
+            FailingWriter writer = new FailingWriter(new OutputStreamWriter(new FileOutputStream(output), "UTF-8"), expected.length() / 3);
+            try
+            {
+                new ParallelEngine(processor.rewriter(), 2, 4, StaxBackend.DEFAULT).runSplit(new TUSplitter(input),
+                        StaxBackend.DEFAULT.newInputFactory(), StaxBackend.DEFAULT.newOutputFactory(), writer, checkpoint, null, null);
+                fail(name + ": the output did not fail");
+            }
+            catch (IOException ex)
+            {
+                assertTrue(ex.toString(), ex == FailingWriter.FAILURE);
+            }
+            writer.out.close(); //leaves whatever was written after the checkpoint
+            assertTrue(name + ": no checkpoint", new File(output.getPath() + ".checkpoint").exists());
+
+            run(input, output, rules, "-split", "-resume");
+            assertSameBytes(name + " resumed", expected, output);
+            assertFalse(new File(output.getPath() + ".checkpoint").exists());
+        }
+    }
+
+    /**
+     * Writer that fails once a number of characters went through it.
+     */
+    private static final class FailingWriter extends Writer
+    {
+        static final IOException FAILURE = new IOException("disk full");
+
+        final Writer out;
+        private long left;
+
+        FailingWriter(Writer out, long limit)
+        {
+            this.out = out;
+            this.left = limit;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException
+        {
+            if (len > left)
+            {
+                out.write(cbuf, off, (int) left);
+                left = 0;
+                throw FAILURE;
+            }
+            out.write(cbuf, off, len);
+            left -= len;
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.uncorpora.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Fingerprints and the off-heap set of them.
+ */
+public class FingerprintSetTest
+{
+    @Test
+    public void addsOnce()
+    {
+        FingerprintSet set = new FingerprintSet(null);
+        assertEquals(0, set.size());
+        assertTrue(set.add(42));
+        assertFalse(set.add(42));
+        assertTrue(set.add(-42));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void zeroIsAFingerprint()
+    {
+        FingerprintSet set = new FingerprintSet(null);
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void keepsEverythingWhileGrowing()
+    {
+        FingerprintSet set = new FingerprintSet(null);
+        int count = 100000; //same top bits, so one segment grows to several times its initial size
+        for (int i = 1; i <= count; i++)
+        {
+            assertTrue(set.add(i * 0x9e3779b9L));
+        }
+        assertEquals(count, set.size());
+        for (int i = 1; i <= count; i++)
+        {
+            assertFalse(set.add(i * 0x9e3779b9L));
+        }
+        assertEquals(count, set.size());
+    }
+
+    @Test
+    public void hashInPieces()
+    {
+        String text = "The General Assembly decides";
+        char[] chars = text.toCharArray();
+        long whole = FingerprintSet.hash(FingerprintSet.SEED, text);
+        long pieces = FingerprintSet.hash(FingerprintSet.SEED, chars, 0, 11);
+        pieces = FingerprintSet.hash(pieces, chars, 11, chars.length - 11);
+        assertEquals(whole, pieces);
+        assertEquals(whole, FingerprintSet.hash(FingerprintSet.SEED, chars, 0, chars.length));
+
+        long bytes = FingerprintSet.SEED;
+        for (char c : chars)
+        {
+            bytes = FingerprintSet.hash(bytes, (byte) c);
+        }
+        assertEquals("ASCII hashes the same as bytes and as chars", whole, bytes);
+    }
+
+    @Test
+    public void separatorsTellPiecesApart()
+    {
+        long ab = FingerprintSet.separator(FingerprintSet.hash(FingerprintSet.SEED, "a"), 1);
+        ab = FingerprintSet.hash(ab, "b");
+        long a = FingerprintSet.hash(FingerprintSet.SEED, "a");
+        a = FingerprintSet.separator(FingerprintSet.hash(a, "b"), 1);
+        assertFalse(ab == a);
+        long other = FingerprintSet.separator(FingerprintSet.hash(FingerprintSet.SEED, "a"), 2);
+        other = FingerprintSet.hash(other, "b");
+        assertFalse(ab == other);
+        assertFalse(FingerprintSet.finish(ab) == FingerprintSet.finish(other));
+    }
+}
@@ -0,0 +1,110 @@
+package org.uncorpora.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.xml.stream.XMLStreamException;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Ranges an incremental run is cut into.
+ */
+public class IncrementalManifestTest
+{
+    private File input;
+
+    @After
+    public void deleteFile()
+    {
+        if (input != null)
+        {
+            input.delete();
+        }
+    }
+
+    private TUSplitter generate(int tuCount) throws IOException
+    {
+        input = File.createTempFile("incremental", ".tmx");
+        Random random = new Random(3);
+        Writer out = new OutputStreamWriter(new FileOutputStream(input), "UTF-8");
+        try
+        {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<tmx version=\"1.4\"><header/><body>\n");
+            for (int i = 0; i < tuCount; i++)
+            {
+                if (i % 97 == 5)
+                {
+                    out.write("<tu tuid=\"" + i + "\"/>\n<!-- between TUs -->\n");
+                    continue;
+                }
+                out.write("<tu tuid=\"" + i + "\">\n  <tuv xml:lang=\"EN\"><seg>");
+                int words = random.nextInt(60);
+                for (int w = 0; w < words; w++)
+                {
+                    out.write(Integer.toString(random.nextInt(1000), 36) + " résolution ");
+                }
+                out.write("</seg></tuv>\n</tu>\n");
+            }
+            out.write("</body></tmx>\n");
+        }
+        finally
+        {
+            out.close();
+        }
+        return new TUSplitter(input);
+    }
+
+    /**
+     * The cuts as the ranges are defined: after a TU, counted from its start to the next TU start,
+     * whose fingerprint has its low 8 bits clear.
+     */
+    private static long[] expectedBounds(TUSplitter splitter, long firstTU, long lastTUEnd)
+    {
+        List<Long> bounds = new ArrayList<Long>();
+        bounds.add(firstTU);
+        for (long tu = firstTU; tu < lastTUEnd; )
+        {
+            long next = splitter.findTUStart(tu + 1, lastTUEnd);
+            next = next < 0 ? lastTUEnd : next;
+            long fingerprint = FingerprintSet.SEED;
+            for (long pos = tu; pos < next; pos++)
+            {
+                fingerprint = FingerprintSet.hash(fingerprint, splitter.get(pos));
+            }
+            tu = next;
+            if (tu == lastTUEnd || (FingerprintSet.finish(fingerprint) & 0xff) == 0)
+            {
+                bounds.add(tu);
+            }
+        }
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++)
+        {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    @Test
+    public void rangesDoNotDependOnTheWorkers() throws IOException, XMLStreamException
+    {
+        TUSplitter splitter = generate(6000);
+        long firstTU = splitter.findTUStart(0, splitter.length());
+        long lastTUEnd = splitter.findLastTUEnd();
+        long[] expected = expectedBounds(splitter, firstTU, lastTUEnd);
+        assertTrue(expected.length > 5);
+
+        File output = new File(input.getPath() + ".out");
+        IncrementalManifest manifest = IncrementalManifest.start(output, "");
+        assertArrayEquals(expected, manifest.split(splitter, firstTU, lastTUEnd, 1, 1 << 30));
+        assertArrayEquals(expected, manifest.split(splitter, firstTU, lastTUEnd, 3, 4096));
+        assertArrayEquals(expected, manifest.split(splitter, firstTU, lastTUEnd, 2, 1));
+    }
+}
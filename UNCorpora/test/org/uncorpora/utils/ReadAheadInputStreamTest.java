@@ -0,0 +1,132 @@
+package org.uncorpora.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Blocks and failures of the source come out of the reading thread in order.
+ */
+public class ReadAheadInputStreamTest
+{
+    private static byte[] bytes(int count)
+    {
+        byte[] bytes = new byte[count];
+        for (int i = 0; i < count; i++)
+        {
+            bytes[i] = (byte) (i * 31);
+        }
+        return bytes;
+    }
+
+    private static int readAll(InputStream in, byte[] into) throws IOException
+    {
+        int total = 0;
+        int count;
+        while ((count = in.read(into, total, Math.min(7, into.length - total))) > 0)
+        {
+            total += count;
+        }
+        return total;
+    }
+
+    @Test(timeout = 10000)
+    public void copiesTheSource() throws IOException
+    {
+        byte[] data = bytes(1000);
+        InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 64);
+        byte[] read = new byte[2000];
+        assertEquals(data.length, readAll(in, read));
+        assertEquals(-1, in.read());
+        in.close();
+        for (int i = 0; i < data.length; i++)
+        {
+            assertEquals(data[i], read[i]);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void blockSizeSource() throws IOException
+    {
+        InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(bytes(128)), 64);
+        assertEquals(128, readAll(in, new byte[256]));
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    @Test(timeout = 10000)
+    public void ioFailureAfterTheData() throws IOException
+    {
+        checkFailure(new IOException("broken"));
+    }
+
+    @Test(timeout = 10000)
+    public void runtimeFailureAfterTheData() throws IOException
+    {
+        checkFailure(new IllegalStateException("broken"));
+    }
+
+    @Test(timeout = 10000)
+    public void errorAfterTheData() throws IOException
+    {
+        checkFailure(new AssertionError("broken"));
+    }
+
+    /**
+     * The bytes before the failure are read, then the failure comes out as an IOException.
+     */
+    private static void checkFailure(final Throwable failure) throws IOException
+    {
+        final InputStream data = new ByteArrayInputStream(bytes(100));
+        InputStream source = new InputStream()
+        {
+            @Override
+            public int read() throws IOException
+            {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                if (data.available() > 0)
+                {
+                    return data.read(b, off, len);
+                }
+                if (failure instanceof IOException)
+                {
+                    throw (IOException) failure;
+                }
+                if (failure instanceof RuntimeException)
+                {
+                    throw (RuntimeException) failure;
+                }
+                throw (Error) failure;
+            }
+        };
+        InputStream in = new ReadAheadInputStream(source, 16);
+        byte[] read = new byte[200];
+        int total = 0;
+        try
+        {
+            int count;
+            while ((count = in.read(read, total, read.length - total)) > 0)
+            {
+                total += count;
+            }
+            fail("no failure");
+        }
+        catch (IOException ex)
+        {
+            assertEquals(100, total);
+            assertTrue(ex == failure || ex.getCause() == failure);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
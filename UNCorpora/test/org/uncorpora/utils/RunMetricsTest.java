@@ -0,0 +1,38 @@
+package org.uncorpora.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Stage times taken on sampled TUs.
+ */
+public class RunMetricsTest
+{
+    @Test
+    public void lastSampledTUIsCounted() throws InterruptedException
+    {
+        RunMetrics metrics = new RunMetrics();
+        RunMetrics.Clock clock = new RunMetrics.Clock(metrics);
+        clock.start(true);
+        Thread.sleep(5);
+        clock.lap(RunMetrics.Stage.PARSE);
+        assertEquals(0, metrics.getParseMillis());
+        clock.stop();
+        long parse = metrics.getParseMillis();
+        assertTrue(parse >= 5);
+        clock.stop();
+        assertEquals(parse, metrics.getParseMillis());
+    }
+
+    @Test
+    public void tuNotSampledIsNotTimed() throws InterruptedException
+    {
+        RunMetrics metrics = new RunMetrics();
+        RunMetrics.Clock clock = new RunMetrics.Clock(metrics);
+        clock.start(false);
+        Thread.sleep(5);
+        clock.lap(RunMetrics.Stage.WRITE);
+        clock.stop();
+        assertEquals(0, metrics.getWriteMillis());
+    }
+}
@@ -0,0 +1,46 @@
+package org.uncorpora.utils;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Element codes and language bits.
+ */
+public class TMXSymbolsTest
+{
+    @Test
+    public void elements()
+    {
+        assertEquals(TMXSymbols.TU, TMXSymbols.element("", "tu"));
+        assertEquals(TMXSymbols.TUV, TMXSymbols.element("", "tuv"));
+        assertEquals(TMXSymbols.SEG, TMXSymbols.element("", "seg"));
+        assertEquals(TMXSymbols.PROP, TMXSymbols.element("", "prop"));
+        assertEquals(TMXSymbols.OTHER, TMXSymbols.element("", "tuvx"));
+        assertEquals(TMXSymbols.OTHER, TMXSymbols.element("", "TU"));
+    }
+
+    @Test
+    public void validLanguagesOnlyInUpperCase()
+    {
+        for (String lang : Processor.VALID_LANGS)
+        {
+            int bit = TMXSymbols.langBit(lang);
+            assertTrue(lang, (bit & TMXSymbols.LANG_VALID) != 0);
+            assertEquals(lang.toLowerCase(), TMXSymbols.LANG_OTHER, TMXSymbols.langBit(lang.toLowerCase()));
+        }
+        assertEquals(TMXSymbols.LANG_OTHER, TMXSymbols.langBit("DE"));
+        assertEquals(TMXSymbols.LANG_OTHER, TMXSymbols.langBit("EN-GB"));
+        assertEquals(TMXSymbols.LANG_NONE, TMXSymbols.langBit(null));
+    }
+
+    @Test
+    public void columnsMatchLikeTheRules()
+    {
+        int[] columns = {TMXSymbols.langBit("FR"), TMXSymbols.langBit("EN")};
+        assertEquals(0, TMXSymbols.langIndex("FR", columns));
+        assertEquals(1, TMXSymbols.langIndex("EN", columns));
+        assertEquals(-1, TMXSymbols.langIndex("en", columns));
+        assertEquals(-1, TMXSymbols.langIndex("ZH", columns));
+        assertEquals(-1, TMXSymbols.langIndex(null, columns));
+    }
+}
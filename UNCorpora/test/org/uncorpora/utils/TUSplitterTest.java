@@ -0,0 +1,208 @@
+package org.uncorpora.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * TU boundaries found on the bytes of small TMX files.
+ */
+public class TUSplitterTest
+{
+    private static final String HEAD = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<tmx version=\"1.4\"><header/><body>\n";
+    private static final String TAIL = "</body></tmx>\n";
+
+    private File file;
+
+    @After
+    public void deleteFile()
+    {
+        if (file != null)
+        {
+            file.delete();
+        }
+    }
+
+    private TUSplitter splitter(String text) throws IOException
+    {
+        file = File.createTempFile("tusplitter", ".tmx");
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(text.getBytes("UTF-8"));
+        }
+        finally
+        {
+            out.close();
+        }
+        return new TUSplitter(file);
+    }
+
+    @Test
+    public void findsTUStartsAndEnds() throws IOException
+    {
+        String tu1 = "<tu tuid=\"1\"><tuv xml:lang=\"en\"><seg>a</seg></tuv></tu>";
+        String tu2 = "<tu\ttuid=\"2\"><tuv xml:lang=\"fr\"><seg>b</seg></tuv></tu >";
+        String text = HEAD + tu1 + "\n" + tu2 + "\n" + TAIL;
+        TUSplitter splitter = splitter(text);
+
+        long first = splitter.findTUStart(0, splitter.length());
+        assertEquals(text.indexOf(tu1), first);
+        assertEquals(first + tu1.length(), splitter.findTUEnd(first));
+        long second = splitter.findTUStart(first + 1, splitter.length());
+        assertEquals(text.indexOf(tu2), second);
+        assertEquals(second + tu2.length(), splitter.findTUEnd(second));
+        assertEquals(second, splitter.findLastTUStart());
+        assertEquals(second + tu2.length(), splitter.findLastTUEnd());
+        assertEquals(-1, splitter.findTUStart(second + 1, splitter.length()));
+    }
+
+    @Test
+    public void tuvIsNotATU() throws IOException
+    {
+        TUSplitter splitter = splitter(HEAD + "<tuv xml:lang=\"en\"><seg>a</seg></tuv>" + TAIL);
+        assertEquals(-1, splitter.findTUStart(0, splitter.length()));
+        assertEquals(-1, splitter.findLastTUStart());
+    }
+
+    @Test
+    public void quotedGreaterThanInStartTag() throws IOException
+    {
+        String tu = "<tu tuid=\"a>b\" note='c/>'><tuv xml:lang=\"en\"><seg>x</seg></tuv></tu>";
+        String text = HEAD + tu + TAIL;
+        TUSplitter splitter = splitter(text);
+        long start = splitter.findTUStart(0, splitter.length());
+        assertEquals(start + tu.length(), splitter.findTUEnd(start));
+    }
+
+    @Test
+    public void emptyTU() throws IOException
+    {
+        String tu = "<tu tuid=\"1\"/>";
+        String text = HEAD + tu + "<tu tuid=\"2\"></tu>" + TAIL;
+        TUSplitter splitter = splitter(text);
+        long start = splitter.findTUStart(0, splitter.length());
+        assertEquals(start + tu.length(), splitter.findTUEnd(start));
+    }
+
+    @Test
+    public void unfinishedTU() throws IOException
+    {
+        TUSplitter splitter = splitter(HEAD + "<tu tuid=\"1\"><tuv xml:lang=\"en\"><seg>a</seg></tuv>");
+        assertEquals(-1, splitter.findTUEnd(splitter.findTUStart(0, splitter.length())));
+        assertEquals(-1, splitter.findLastTUEnd());
+    }
+
+    @Test
+    public void rangesCoverTheTUs() throws IOException
+    {
+        StringBuilder text = new StringBuilder(HEAD);
+        for (int i = 0; i < 100; i++)
+        {
+            text.append("<tu tuid=\"").append(i).append("\"><tuv xml:lang=\"en\"><seg>text ").append(i).append("</seg></tuv></tu>\n");
+        }
+        text.append(TAIL);
+        TUSplitter splitter = splitter(text.toString());
+        long first = splitter.findTUStart(0, splitter.length());
+        long end = splitter.findLastTUEnd();
+
+        long[] bounds = splitter.split(first, end, 500);
+        assertTrue(bounds.length > 3);
+        assertEquals(first, bounds[0]);
+        assertEquals(end, bounds[bounds.length - 1]);
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i + 1 < bounds.length; i++)
+        {
+            assertTrue(bounds[i] < bounds[i + 1]);
+            if (i > 0)
+            {
+                assertEquals(bounds[i], splitter.findTUStart(bounds[i], end));
+            }
+            joined.append(read(splitter.open(bounds[i], bounds[i + 1])));
+        }
+        assertEquals(text.substring((int) first, (int) end), joined.toString());
+    }
+
+    @Test
+    public void plainFileHasNoHiddenTags() throws IOException
+    {
+        TUSplitter splitter = splitter(HEAD + "<!-- a comment -->\n<tu><tuv xml:lang=\"en\"><seg><![CDATA[1 < 2]]></seg></tuv></tu>\n" + TAIL);
+        assertEquals(-1, splitter.findHiddenTUTag(0, splitter.length()));
+    }
+
+    @Test
+    public void tuInComment() throws IOException
+    {
+        TUSplitter splitter = splitter(HEAD + "<!-- <tu tuid=\"0\"><tuv xml:lang=\"en\"><seg>a</seg></tuv></tu> -->\n<tu><tuv xml:lang=\"en\"><seg>b</seg></tuv></tu>\n" + TAIL);
+        assertEquals(HEAD.length(), splitter.findHiddenTUTag(0, splitter.length()));
+    }
+
+    @Test
+    public void tuEndInCDATA() throws IOException
+    {
+        TUSplitter splitter = splitter(HEAD + "<tu><tuv xml:lang=\"en\"><seg><![CDATA[see </tu>]]></seg></tuv></tu>\n" + TAIL);
+        assertEquals(HEAD.length() + "<tu><tuv xml:lang=\"en\"><seg>".length(), splitter.findHiddenTUTag(0, splitter.length()));
+    }
+
+    @Test
+    public void tuInProcessingInstruction() throws IOException
+    {
+        TUSplitter splitter = splitter(HEAD + "<?note <tu>?>\n<tu><tuv xml:lang=\"en\"><seg>b</seg></tuv></tu>\n" + TAIL);
+        assertEquals(HEAD.length(), splitter.findHiddenTUTag(0, splitter.length()));
+    }
+
+    @Test
+    public void unclosedComment() throws IOException
+    {
+        TUSplitter splitter = splitter(HEAD + "<!-- <tu>");
+        assertEquals(HEAD.length(), splitter.findHiddenTUTag(0, splitter.length()));
+    }
+
+    @Test
+    public void rangeEndingInsideAComment() throws IOException
+    {
+        TUSplitter splitter = splitter(HEAD + "<tu></tu>\n<!-- a -->\n<tu></tu>\n" + TAIL);
+        long comment = HEAD.length() + 10;
+        assertEquals(-1, splitter.findHiddenTUTag(0, comment + 10));
+        assertEquals(comment, splitter.findHiddenTUTag(0, comment + 9));
+        assertEquals(-1, splitter.findHiddenTUTag(HEAD.length(), comment));
+    }
+
+    @Test
+    public void markupAcrossBlocks() throws IOException
+    {
+        StringBuilder text = new StringBuilder(HEAD);
+        for (int i = 0; i < 20000; i++)
+        {
+            text.append("<tu><tuv xml:lang=\"en\"><seg>").append(i).append("</seg></tuv></tu>\n");
+        }
+        long comment = text.length();
+        text.append("<!-- ");
+        for (int i = 0; i < 20000; i++)
+        {
+            text.append("- -> ").append(i);
+        }
+        text.append(" </tu> -->\n").append(TAIL);
+        TUSplitter splitter = splitter(text.toString());
+        assertEquals(comment, splitter.findHiddenTUTag(0, splitter.length()));
+        assertEquals(-1, splitter.findHiddenTUTag(0, comment));
+    }
+
+    private static String read(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64];
+        int count;
+        while ((count = in.read(buffer, 0, buffer.length)) >= 0)
+        {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toString("UTF-8");
+    }
+}
@@ -0,0 +1,64 @@
+package org.uncorpora.utils;
+
+import java.io.StringReader;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Text taken from the events of a TU.
+ */
+public class TUTextTest
+{
+    private static TUWindow events(String tu) throws XMLStreamException
+    {
+        XMLEventReader reader = XMLInputFactory.newInstance().createXMLEventReader(new StringReader(tu));
+        TUWindow window = new TUWindow();
+        while (reader.hasNext())
+        {
+            window.add(reader.nextEvent());
+        }
+        return window;
+    }
+
+    @Test
+    public void textPerLanguage() throws XMLStreamException
+    {
+        TUText text = new TUText(new String[] {"EN", "FR", "ZH"});
+        text.read(events("<tu tuid=\"7\"><prop type=\"session\"> 57 </prop><prop type=\"session\">58</prop>"
+                + "<tuv xml:lang=\"FR\"><seg>  la\n  résolution </seg></tuv>"
+                + "<tuv xml:lang=\"EN\"><seg>the <hi>draft</hi>\tresolution</seg></tuv></tu>"));
+        assertEquals("7", text.tuid());
+        assertTrue(text.hasSession());
+        assertEquals("57", text.session().toString());
+        assertFalse(text.hasVote());
+        assertEquals("the draft resolution", text.text(0).toString());
+        assertEquals("la résolution", text.text(1).toString());
+        assertEquals("", text.text(2).toString());
+    }
+
+    @Test
+    public void languagesMatchLikeTheRules() throws XMLStreamException
+    {
+        TUText text = new TUText(new String[] {"EN"});
+        text.read(events("<tu><tuv xml:lang=\"en\"><seg>lower</seg></tuv><tuv><seg>none</seg></tuv></tu>"));
+        assertEquals("", text.text(0).toString());
+    }
+
+    @Test
+    public void nextTUStartsOver() throws XMLStreamException
+    {
+        TUText text = new TUText(new String[] {"EN"});
+        text.read(events("<tu tuid=\"1\"><prop type=\"vote\">yes</prop><prop type=\"session\">57</prop>"
+                + "<tuv xml:lang=\"EN\"><seg>first</seg></tuv></tu>"));
+        assertTrue(text.hasVote());
+        text.read(events("<tu><tuv xml:lang=\"EN\"><seg> second </seg></tuv></tu>"));
+        assertNull(text.tuid());
+        assertFalse(text.hasVote());
+        assertFalse(text.hasSession());
+        assertEquals("", text.session().toString());
+        assertEquals("second", text.text(0).toString());
+    }
+}
@@ -0,0 +1,117 @@
+package org.uncorpora.utils;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.TreeSet;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Line-aligned text export.
+ */
+public class TextExporterTest
+{
+    private static final String[] LANGS = {"EN", "FR"};
+    private static final String DOCUMENT = "<tmx version=\"1.4\"><header/><body>\n"
+            + "<tu><tuv xml:lang=\"EN\"><seg>the draft</seg></tuv><tuv xml:lang=\"FR\"><seg>le projet</seg></tuv></tu>\n"
+            + "<tu><prop type=\"vote\">yes</prop><tuv xml:lang=\"EN\"><seg>dropped</seg></tuv></tu>\n"
+            + "<tu><tuv xml:lang=\"EN\"><seg>no French</seg></tuv></tu>\n"
+            + "</body></tmx>\n";
+
+    private static void export(Writer[] writers) throws XMLStreamException, IOException
+    {
+        TURewriter rewriter = new TURewriter(Processor.VALID_LANGS, new TreeSet<String>(Arrays.asList(LANGS)), true, false, null, false, null,
+                Long.MAX_VALUE, new RunMetrics());
+        XMLEventReader reader = XMLInputFactory.newInstance().createXMLEventReader(new StringReader(DOCUMENT));
+        new TextExporter(rewriter, LANGS, writers).run(reader, null);
+    }
+
+    @Test
+    public void lineOfEveryKeptTU() throws XMLStreamException, IOException
+    {
+        StringWriter en = new StringWriter();
+        StringWriter fr = new StringWriter();
+        export(new Writer[] {en, fr});
+        assertEquals("the draft\nno French\n", en.toString());
+        assertEquals("le projet\n\n", fr.toString());
+    }
+
+    @Test
+    public void failedWriteIsNotHiddenByClose() throws XMLStreamException
+    {
+        FailingWriter failsWriting = new FailingWriter(true);
+        FailingWriter failsClosing = new FailingWriter(false);
+        try
+        {
+            export(new Writer[] {failsWriting, failsClosing});
+            fail("the export did not fail");
+        }
+        catch (IOException ex)
+        {
+            assertEquals("write", ex.getMessage());
+        }
+        assertTrue(failsWriting.closed);
+        assertTrue(failsClosing.closed);
+    }
+
+    @Test
+    public void failedCloseFailsTheExport() throws XMLStreamException
+    {
+        FailingWriter failsClosing = new FailingWriter(false);
+        StringWriter fr = new StringWriter();
+        try
+        {
+            export(new Writer[] {failsClosing, fr});
+            fail("the export did not fail");
+        }
+        catch (IOException ex)
+        {
+            assertEquals("close", ex.getMessage());
+        }
+        assertEquals("le projet\n\n", fr.toString());
+    }
+
+    /**
+     * Writer that fails on every write, or else on close.
+     */
+    private static final class FailingWriter extends Writer
+    {
+        private final boolean failWrite;
+        boolean closed;
+
+        FailingWriter(boolean failWrite)
+        {
+            this.failWrite = failWrite;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException
+        {
+            if (failWrite)
+            {
+                throw new IOException("write");
+            }
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            closed = true;
+            if (!failWrite)
+            {
+                throw new IOException("close");
+            }
+        }
+    }
+}